@@ -0,0 +1,117 @@
+package com.efedorchenko.gptbot.utils.logging;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сравнение {@link TruncatingJsonFormatter} с прежним форматированием логов: сериализация в строку, замена base64
+ * регулярным выражением, разбор в дерево, сокращение массивов в дереве и обрезка результата
+ * <p>
+ * Аллокации на вызов видны с профайлером {@code -prof gc}
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LogFormatBenchmark {
+
+    private static final int MAX_LENGTH = 2000;
+    private static final int MAX_ARRAY_ELEMENTS = 2;
+    private static final String BASE64_REGEX = "([A-Za-z0-9+/]{1000,})(=*)";
+
+    /**
+     * {@code history} - запрос к {@code YandexGPT} с историей переписки, {@code image} - ответ {@code YandexART}
+     * с изображением в base64
+     */
+    @Param({"history", "image"})
+    private String payload;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private TruncatingJsonFormatter formatter;
+    private Object object;
+
+    @Setup
+    public void setUp() {
+        formatter = new TruncatingJsonFormatter(objectMapper, MAX_LENGTH, MAX_ARRAY_ELEMENTS);
+        Random random = new Random(42);
+
+        Map<String, Object> value = new LinkedHashMap<>();
+        if (payload.equals("history")) {
+            List<Map<String, String>> messages = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                messages.add(Map.of("role", i % 2 == 0 ? "user" : "assistant", "text", "Сообщение истории номер " + i + " ".repeat(200)));
+            }
+            value.put("modelUri", "gpt://folder/yandexgpt/latest");
+            value.put("messages", messages);
+        } else {
+            byte[] image = new byte[1536 * 1024];
+            random.nextBytes(image);
+            value.put("id", "operation-id");
+            value.put("done", true);
+            value.put("response", Map.of("image", Base64.getEncoder().encodeToString(image), "modelVersion", "1"));
+        }
+        object = value;
+    }
+
+    @Benchmark
+    public String streaming() throws IOException {
+        return formatter.format(object);
+    }
+
+    @Benchmark
+    public String regexAndTree() throws IOException {
+        String string = objectMapper.writeValueAsString(object)
+                .replaceAll("\\n", "")
+                .replaceAll(BASE64_REGEX, "base64 encoding");
+
+        String result = truncate(objectMapper.readTree(string)).toString();
+        return result.length() > MAX_LENGTH
+                ? "..>" + result.substring(result.length() - MAX_LENGTH)
+                : result;
+    }
+
+    private static JsonNode truncate(JsonNode node) {
+        return switch (node) {
+            case ArrayNode arrayNode when arrayNode.size() > MAX_ARRAY_ELEMENTS -> {
+                ArrayNode truncatedArray = JsonNodeFactory.instance.arrayNode();
+                truncatedArray.add("<.. " + (arrayNode.size() - MAX_ARRAY_ELEMENTS) + " hide ..>");
+                for (int i = arrayNode.size() - MAX_ARRAY_ELEMENTS; i < arrayNode.size(); i++) {
+                    truncatedArray.add(arrayNode.get(i));
+                }
+                yield truncatedArray;
+            }
+            case ObjectNode objectNode -> {
+                ObjectNode result = JsonNodeFactory.instance.objectNode();
+                objectNode.fields().forEachRemaining(f -> result.set(f.getKey(), truncate(f.getValue())));
+                yield result;
+            }
+            default -> node;
+        };
+    }
+
+}
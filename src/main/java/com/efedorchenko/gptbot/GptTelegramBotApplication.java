@@ -1,11 +1,13 @@
 package com.efedorchenko.gptbot;
 
+import com.efedorchenko.gptbot.configuration.properties.GptLimiterProperties;
+import com.efedorchenko.gptbot.configuration.properties.VoiceArchiveProperties;
 import com.efedorchenko.gptbot.configuration.properties.YandexProperties;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 
-@EnableConfigurationProperties(YandexProperties.class)
+@EnableConfigurationProperties({YandexProperties.class, GptLimiterProperties.class, VoiceArchiveProperties.class})
 @SpringBootApplication
 public class GptTelegramBotApplication {
 
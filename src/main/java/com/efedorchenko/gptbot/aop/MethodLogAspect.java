@@ -1,6 +1,6 @@
 package com.efedorchenko.gptbot.aop;
 
-import com.efedorchenko.gptbot.utils.logging.Log;
+import com.efedorchenko.gptbot.utils.logging.LogPlan;
 import com.efedorchenko.gptbot.utils.logging.LogUtils;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -8,16 +8,12 @@ import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.reflect.MethodSignature;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import java.lang.reflect.Method;
-import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.stream.IntStream;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.efedorchenko.gptbot.utils.logging.LogUtils.LOGIC_MARKER;
 
 @Slf4j
 @Aspect
@@ -25,46 +21,45 @@ import java.util.stream.IntStream;
 @RequiredArgsConstructor
 public class MethodLogAspect {
 
-    private final ExecutorService executorServiceOfVirtual;
+    /** Планы логирования, построенные при первом вызове каждого метода */
+    private final ConcurrentHashMap<Method, LogPlan> plans = new ConcurrentHashMap<>();
+
     private final LogUtils logUtils;
 
-    @Around("@annotation(log)")
-    public Object logMethod(ProceedingJoinPoint joinPoint, Log log) throws Throwable {
+    @Around("@annotation(com.efedorchenko.gptbot.utils.logging.Log)")
+    public Object logMethod(ProceedingJoinPoint joinPoint) throws Throwable {
 
         Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
-        Logger logger = LoggerFactory.getLogger(method.getDeclaringClass().getName() + "." + method.getName());
-
-        CompletableFuture<List<Object>> paramsForLogFuture = null;
-        boolean enabledForLevel = logger.isEnabledForLevel(log.level());
-
-        if (enabledForLevel) {
-
-            paramsForLogFuture = CompletableFuture.supplyAsync(() -> {
-
-                List<Object> methodParams = Arrays.asList(joinPoint.getArgs());
-                List<Integer> excludes = Arrays.stream(log.exclude()).boxed().toList();
+        LogPlan plan = plans.computeIfAbsent(method, MethodLogAspect::planOf);
 
-                return IntStream.range(0, methodParams.size())
-                        .filter(i -> !excludes.contains(i))
-                        .mapToObj(methodParams::get)
-                        .toList();
-
-            }, executorServiceOfVirtual);
+        if (!plan.isEnabled()) {
+            return joinPoint.proceed();
         }
 
+//        Ссылки на параметры копируются до вызова: метод может заменить элементы массива аргументов
+        Object[] params = plan.capture(joinPoint.getArgs());
         try {
             Object result = joinPoint.proceed();
-            if (enabledForLevel) {
-                logUtils.doLogMethodAsyncForSomeone(paramsForLogFuture, result, logger, log);
-            }
+            logUtils.logMethodAsync(plan, params, result);
             return result;
 
         } catch (Throwable ex) {
-            if (enabledForLevel) {
-                logUtils.doLogMethodAsyncForSomeone(paramsForLogFuture, ex, logger, log);
-            }
+            logUtils.logMethodAsync(plan, params, ex);
             throw ex;
         }
     }
 
+    /**
+     * Ошибка в {@link com.efedorchenko.gptbot.utils.logging.Log#exclude()} логируется один раз, а метод
+     * логируется без параметров
+     */
+    private static LogPlan planOf(Method method) {
+        try {
+            return LogPlan.of(method);
+        } catch (IndexOutOfBoundsException ex) {
+            log.error(LOGIC_MARKER, "Invalid @Log annotation, parameters of {} will not be logged. Ex: {}", method, ex.getMessage());
+            return LogPlan.withoutParameters(method);
+        }
+    }
+
 }
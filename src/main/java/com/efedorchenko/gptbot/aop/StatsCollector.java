@@ -1,7 +1,7 @@
 package com.efedorchenko.gptbot.aop;
 
-import com.efedorchenko.gptbot.data.BotUserRepository;
-import com.efedorchenko.gptbot.entity.BotUser;
+import com.efedorchenko.gptbot.data.QuotaRedisService;
+import com.efedorchenko.gptbot.service.UsageStatsAccumulator;
 import com.efedorchenko.gptbot.yandex.model.ArtAnswer;
 import com.efedorchenko.gptbot.yandex.model.GptAnswer;
 import lombok.RequiredArgsConstructor;
@@ -12,10 +12,8 @@ import org.aspectj.lang.annotation.Pointcut;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.MDC;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.function.Function;
 import java.util.regex.Pattern;
@@ -28,14 +26,14 @@ public class StatsCollector {
 
     private static final Pattern allowedSymbols = Pattern.compile("[^A-Za-zА-Яа-я0-9._-]");
 
+    private final QuotaRedisService quotaService;
     private final ExecutorService executorServiceOfVirtual;
-    private final BotUserRepository botUserRepository;
+    private final UsageStatsAccumulator usageStatsAccumulator;
 
     @Pointcut("execution(* com.efedorchenko.gptbot.service.AiModelService.buildAndExecutePost(..))")
     public void aiExecutingPointcut() {
     }
 
-    @Transactional
     @AfterReturning(pointcut = "aiExecutingPointcut()", returning = "result")
     public Object collectAiUsesStats(Object result) {
 
@@ -44,40 +42,26 @@ public class StatsCollector {
             return result;
         }
 
-        CompletableFuture.runAsync(() ->
-                Optional.ofNullable(MDC.get(MdcConfigurer.MDC_USER))
-                        .map(MdcConfigurer.MdcUser::fromString)
-
-                        .ifPresent(mdcUser -> {
-
-//                      Только если result - это непустой Optional и в MDC есть юзер и его удалось восстановить из строки
-                            BotUser botUser = botUserRepository.findById(Long.parseLong(mdcUser.getId()))
-                                    .orElseGet(() -> {
-                                        BotUser botUser1 = new BotUser();
-                                        botUser1.setChatId(Long.parseLong(mdcUser.getId()));
-                                        return botUser1;
-                                    }).toBuilder()
-                                    .username(extractUsername(mdcUser.getUsername()))
-                                    .name(extractName(mdcUser))
-                                    .build();
-
-                            switch (resultOpt.get()) {
-                                case GptAnswer gpt -> {
-                                    int tokensSpent = Integer.parseInt(gpt.getResult().getUsage().getTotalTokens());
-                                    botUser.setYagptReqsToday(botUser.getYagptReqsToday() + 1);
-                                    botUser.setYagptReqsTotal(botUser.getYagptReqsTotal() + 1);
-                                    botUser.setTokensSpentToday(botUser.getTokensSpentToday() + tokensSpent);
-                                    botUser.setTokensSpentTotal(botUser.getTokensSpentTotal() + tokensSpent);
-                                }
-                                case ArtAnswer art -> {
-                                    botUser.setYaartReqsToday(botUser.getYaartReqsToday() + 1);
-                                    botUser.setYaartReqsTotal(botUser.getYaartReqsTotal() + 1);
-                                }
-                                default -> log.warn("Unknown answer: {}", resultOpt.get());
-                            }
-                            botUserRepository.save(botUser);
-
-                        }), executorServiceOfVirtual);
+//      Только если result - это непустой Optional и в MDC есть юзер и его удалось восстановить из строки
+        Optional.ofNullable(MDC.get(MdcConfigurer.MDC_USER))
+                .map(MdcConfigurer.MdcUser::fromString)
+                .ifPresent(mdcUser -> {
+
+                    long chatId = Long.parseLong(mdcUser.getId());
+                    String username = extractUsername(mdcUser.getUsername());
+                    String name = extractName(mdcUser);
+
+                    switch (resultOpt.get()) {
+                        case GptAnswer gpt when gpt.getResult() != null && gpt.getResult().getUsage() != null -> {
+                            int tokensSpent = Integer.parseInt(gpt.getResult().getUsage().getTotalTokens());
+                            usageStatsAccumulator.recordGptRequest(chatId, username, name, tokensSpent);
+                            executorServiceOfVirtual.execute(() -> quotaService.recordTokensSpent(chatId, tokensSpent));
+                        }
+                        case GptAnswer failed -> log.debug("Stats are not collected for the failed answer: {}", failed);
+                        case ArtAnswer art -> usageStatsAccumulator.recordArtRequest(chatId, username, name);
+                        default -> log.warn("Unknown answer: {}", resultOpt.get());
+                    }
+                });
 
         return result;
     }
@@ -1,5 +1,6 @@
 package com.efedorchenko.gptbot.configuration;
 
+import com.efedorchenko.gptbot.configuration.properties.QuotaProperties;
 import com.efedorchenko.gptbot.configuration.properties.RedisProperties;
 import com.efedorchenko.gptbot.yandex.model.GptMessageUnit;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -12,6 +13,7 @@ import org.springframework.data.redis.cache.RedisCacheConfiguration;
 import org.springframework.data.redis.cache.RedisCacheManager;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
@@ -22,10 +24,16 @@ import static org.springframework.data.redis.serializer.RedisSerializationContex
 @Configuration
 @EnableCaching
 @AllArgsConstructor
-@EnableConfigurationProperties(RedisProperties.class)
+@EnableConfigurationProperties({RedisProperties.class, QuotaProperties.class})
 public class RedisConfiguration {
     public static final String USER_IS_SUB_CACHE_NAME = "sub";
 
+    /**
+     * Канал Redis pub/sub, через который экземпляры приложения сообщают друг другу об изменении истории
+     * сообщений чата. Сообщение в канале: {@code <id экземпляра>:<chatId>}
+     */
+    public static final String HISTORY_INVALIDATION_CHANNEL = "history-invalidation";
+
     private final ObjectMapper objectMapper;
     private final RedisProperties redisProperties;
     private final RedisConnectionFactory connectionFactory;
@@ -65,6 +73,13 @@ public class RedisConfiguration {
         return redisTemplate;
     }
 
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer() {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+
     @Bean
     public RedisCacheManager userIsSubscribedRedisCacheManager() {
         RedisCacheConfiguration cacheConfiguration = RedisCacheConfiguration.defaultCacheConfig()
@@ -1,25 +1,19 @@
 package com.efedorchenko.gptbot.configuration;
 
-import com.efedorchenko.gptbot.exception.RetryAttemptNotReadyException;
 import jakarta.validation.constraints.Positive;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Configuration;
-import org.springframework.retry.backoff.FixedBackOffPolicy;
-import org.springframework.retry.policy.SimpleRetryPolicy;
-import org.springframework.retry.support.RetryTemplate;
 import org.springframework.stereotype.Component;
 import org.springframework.validation.annotation.Validated;
 
-import java.util.Collections;
-
+/**
+ * Параметры опроса асинхронных операций {@code YandexART}, см. {@link com.efedorchenko.gptbot.yandex.service.ArtOperationPoller}
+ */
 @Getter
 @Setter
 @Component
 @Validated
-@Configuration
 @ConfigurationProperties(prefix = RetryTemplateConfiguration.CONFIGURATION_PREFIX, ignoreUnknownFields = false)
 public class RetryTemplateConfiguration {
 
@@ -40,21 +34,13 @@ public class RetryTemplateConfiguration {
     @Positive
     private long backOffPeriodMillis;
 
-    @Bean
-    public RetryTemplate retryTemplate() {
-
-        SimpleRetryPolicy retryPolicy = new SimpleRetryPolicy(
-                maxAttempts, Collections.singletonMap(RetryAttemptNotReadyException.class, true)
-        );
-
-        FixedBackOffPolicy fixedBackOffPolicy = new FixedBackOffPolicy();
-        fixedBackOffPolicy.setBackOffPeriod(backOffPeriodMillis);
-
-        RetryTemplate retryTemplate = new RetryTemplate();
-        retryTemplate.setBackOffPolicy(fixedBackOffPolicy);
-        retryTemplate.setRetryPolicy(retryPolicy);
-
-        return retryTemplate;
-    }
+    /**
+     * Период, с которым {@link com.efedorchenko.gptbot.yandex.service.ArtOperationPoller} проверяет очередь
+     * операций, ожидающих опроса. Исчисляется в {@link java.util.concurrent.TimeUnit#MILLISECONDS}.
+     * Должен быть заметно меньше {@code backOffPeriodMillis}, иначе фактический период опроса будет
+     * округляться вверх до кратного этому значению
+     */
+    @Positive
+    private long pollTickMillis;
 
 }
@@ -1,22 +1,28 @@
 package com.efedorchenko.gptbot.configuration;
 
+import com.efedorchenko.gptbot.configuration.properties.IntakeProperties;
+import com.efedorchenko.gptbot.configuration.properties.OutboundProperties;
 import com.efedorchenko.gptbot.configuration.properties.TelegramProperties;
+import com.efedorchenko.gptbot.configuration.properties.WebhookProperties;
 import com.efedorchenko.gptbot.telegram.TelegramBot;
+import com.efedorchenko.gptbot.telegram.TelegramExecutor;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
 @Slf4j
 @Configuration
 @AllArgsConstructor
-@EnableConfigurationProperties(TelegramProperties.class)
+@EnableConfigurationProperties({TelegramProperties.class, IntakeProperties.class, OutboundProperties.class, WebhookProperties.class})
 public class TelegramBotConfiguration {
 
     /**
@@ -25,11 +31,15 @@ public class TelegramBotConfiguration {
      * Создает и настраивает подключение к серверам Telegram для взаимодействия
      * с ботом,  регистрирует объект {@link TelegramBot}
      * При неудачном соединении приложение будет остановлено, а Spring-контекст закрыт
+     * <p>
+     * Создается только в режиме long polling ({@code webhook.enabled=false}). Регистрация бота удаляет
+     * установленный ранее вебхук
      *
      * @param telegramBot Инициализированный объект для регистрации
      * @return Системный объект для работы с серверами Telegram
      */
     @Bean
+    @ConditionalOnProperty(name = WebhookProperties.CONFIGURATION_PREFIX + ".enabled", havingValue = "false", matchIfMissing = true)
     public TelegramBotsApi telegramBotsApi(TelegramBot telegramBot, ApplicationContext applicationContext) {
 
         try {
@@ -45,4 +55,34 @@ public class TelegramBotConfiguration {
         }
     }
 
+    /**
+     * Устанавливает вебхук, через который Telegram будет присылать апдейты, вместо long polling.
+     * Апдейты принимает {@link com.efedorchenko.gptbot.controller.TelegramWebhookController}.
+     * При неудаче приложение будет остановлено, а Spring-контекст закрыт
+     *
+     * @return Установленный вебхук
+     */
+    @Bean
+    @ConditionalOnProperty(name = WebhookProperties.CONFIGURATION_PREFIX + ".enabled", havingValue = "true")
+    public SetWebhook telegramWebhook(TelegramExecutor telegramExecutor,
+                                      WebhookProperties webhookProperties,
+                                      ApplicationContext applicationContext) {
+
+        SetWebhook setWebhook = SetWebhook.builder()
+                .url(webhookProperties.getUrl())
+                .secretToken(webhookProperties.getSecretToken())
+                .build();
+        try {
+            telegramExecutor.execute(setWebhook);
+            log.info("Telegram webhook is set, updates are expected on {}", webhookProperties.getPath());
+            return setWebhook;
+
+        } catch (TelegramApiException ex) {
+            log.error("Failed to set the Telegram webhook, app has been stopped running. Cause: ", ex);
+            SpringApplication.exit(applicationContext);
+            System.exit(1);
+            return null;
+        }
+    }
+
 }
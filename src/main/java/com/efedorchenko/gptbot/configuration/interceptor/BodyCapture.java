@@ -0,0 +1,109 @@
+package com.efedorchenko.gptbot.configuration.interceptor;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Копия тела http-запроса или ответа ограниченного размера для логирования
+ * <p>
+ * В кольцевом буфере хранятся только последние {@code capacity} байт тела, остальные байты лишь учитываются в
+ * длине и хеше {@code SHA-256}. Поэтому логирование тела любого размера стоит не больше {@code capacity} байт
+ * памяти, а большое или бинарное тело все равно можно опознать в логах по длине и хешу
+ */
+final class BodyCapture extends OutputStream {
+
+    private final byte[] ring;
+    private final MessageDigest digest;
+    private long length;
+
+    BodyCapture(int capacity) {
+        this.ring = new byte[capacity];
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not supported by JVM", ex);
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        digest.update((byte) b);
+        if (ring.length > 0) {
+            ring[(int) (length % ring.length)] = (byte) b;
+        }
+        length++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) {
+        digest.update(bytes, offset, count);
+        if (ring.length == 0) {
+            length += count;
+            return;
+        }
+        if (count > ring.length) {
+            length += count - ring.length;
+            offset += count - ring.length;
+            count = ring.length;
+        }
+        while (count > 0) {
+            int position = (int) (length % ring.length);
+            int chunk = Math.min(count, ring.length - position);
+            System.arraycopy(bytes, offset, ring, position, chunk);
+            offset += chunk;
+            count -= chunk;
+            length += chunk;
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * @return {@code true}, если тело целиком поместилось в буфер
+     */
+    boolean isComplete() {
+        return length <= ring.length;
+    }
+
+    /**
+     * @return тело, если оно целиком поместилось в буфер, иначе его последние {@code capacity} байт. Во втором
+     * случае первый символ может оказаться поврежденным, так как буфер мог начаться с середины символа
+     */
+    String text() {
+        if (isComplete()) {
+            return new String(ring, 0, (int) length, StandardCharsets.UTF_8);
+        }
+        int start = (int) (length % ring.length);
+        byte[] tail = new byte[ring.length];
+        System.arraycopy(ring, start, tail, 0, ring.length - start);
+        System.arraycopy(ring, 0, tail, ring.length - start, start);
+        return new String(tail, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Описание тела по длине и хешу. Вызывается один раз, после того как тело прочитано целиком
+     */
+    String summary() {
+        return "<" + length + " bytes, sha256=" + HexFormat.of().formatHex(digest.digest()) + ">";
+    }
+
+    /**
+     * @return {@code true}, если тело с этим {@code Content-Type} имеет смысл логировать как текст
+     */
+    static boolean isTextual(@Nullable String contentType) {
+        if (contentType == null) {
+            return true;
+        }
+        String type = contentType.toLowerCase();
+        return type.startsWith("text/") || type.contains("json") || type.contains("xml")
+               || type.startsWith("application/x-www-form-urlencoded");
+    }
+
+}
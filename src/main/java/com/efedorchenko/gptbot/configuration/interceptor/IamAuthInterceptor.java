@@ -0,0 +1,66 @@
+package com.efedorchenko.gptbot.configuration.interceptor;
+
+import com.efedorchenko.gptbot.yandex.service.IamTokenManager;
+import lombok.RequiredArgsConstructor;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+@Component
+@RequiredArgsConstructor
+public class IamAuthInterceptor implements Interceptor, Ordered {
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    /**
+     * {@link IamTokenManager} сам ходит в IAM через {@link okhttp3.OkHttpClient}, в который встроен этот
+     * перехватчик, поэтому получается лениво
+     */
+    private final ObjectProvider<IamTokenManager> iamTokenManager;
+
+    @Override
+    public int getOrder() {
+        return 0;
+    }
+
+    /**
+     * Повторяет один раз с обновленным IAM-токеном запрос, получивший {@code 401 Unauthorized}. Запросы без
+     * {@code Bearer}-токена и с одноразовым телом возвращаются как есть
+     *
+     * @throws IOException если {@code chain.proceed(request)} выбрасывает соответствующее исключение
+     */
+    @NotNull
+    @Override
+    public Response intercept(@NotNull Chain chain) throws IOException {
+
+        Request request = chain.request();
+        Response response = chain.proceed(request);
+
+        String authorization = request.header(HttpHeaders.AUTHORIZATION);
+        if (response.code() != HttpStatus.UNAUTHORIZED.value()
+            || authorization == null || !authorization.startsWith(BEARER_PREFIX)
+            || (request.body() != null && request.body().isOneShot())) {
+            return response;
+        }
+
+        String freshToken;
+        try {
+            freshToken = iamTokenManager.getObject().refreshRejected(authorization.substring(BEARER_PREFIX.length()));
+        } catch (IllegalStateException ex) {
+            return response;
+        }
+        response.close();
+        return chain.proceed(request.newBuilder()
+                .header(HttpHeaders.AUTHORIZATION, BEARER_PREFIX + freshToken)
+                .build());
+    }
+
+}
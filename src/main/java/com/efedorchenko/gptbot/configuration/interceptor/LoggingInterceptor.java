@@ -5,15 +5,18 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
 import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.Ordered;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.util.Objects;
 import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -25,9 +28,15 @@ public class LoggingInterceptor implements Interceptor, Ordered {
 
     private static final Set<String> secretHeaders = Set.of("authorization", "x-folder-id");
     private static final Set<String> secretBodyParts = Set.of("iamToken", "yandexPassportOauthToken", "x-folder-id");
+    private static final Pattern SECRET_BODY_PATTERN = Pattern.compile(secretBodyParts.stream()
+            .map(Pattern::quote)
+            .collect(Collectors.joining("|", "\"(", ")\":\"[\\\\.a-zA-Z0-9-_]+\"")));
 
     private final LogUtils logUtils;
 
+    @Value("${logging.body-capture-bytes}")
+    private int captureBytes;
+
     @Override
     public int getOrder() {
         return 2;
@@ -37,6 +46,10 @@ public class LoggingInterceptor implements Interceptor, Ordered {
      * Метод для логирования http-запросов и получаемых ответов, включая их тела (если метод запроса POST)
      * Логирование происходит на уровне {@code TRACE} и включает в себя полный урл запроса, заголовки и тело
      * запроса, а так же код ответа, заголовки, тело и время потраченное на отправку запроса и получение ответа.
+     * <p>
+     * Тело ответа не читается заранее: оно копируется в {@link BodyCapture} по мере того, как его читает
+     * вызывающий код, и логируется, когда прочитано до конца или закрыто. Бинарные тела и тела длиннее
+     * {@code logging.body-capture-bytes} логируются длиной и хешем
      *
      * @throws IOException если {@code chain.proceed(request)} выбрасывает соответствующее исключение
      */
@@ -48,29 +61,25 @@ public class LoggingInterceptor implements Interceptor, Ordered {
 
         if (log.isTraceEnabled()) {
             log.trace("\nRequest line  : {}\nHeaders       : {}\nRequest body  : {}",
-                    request.method() + " " + request.url(), formatHeaders(request.headers()),
-                    formatBody(extractBody(request), request.header(HttpHeaders.CONTENT_TYPE)));
+                    request.method() + " " + request.url(), formatHeaders(request.headers()), formatRequestBody(request));
         }
 
         Response response = chain.proceed(request);
 
-        if (!log.isTraceEnabled()) {
-            return response;
-        }
-        try {
-            ResponseBody body = response.peekBody(Long.MAX_VALUE);
-            String bodyString = body.string();
-
-            log.trace("\nStatus        : {}\nHeaders       : {}\nResponse body : {}",
-                    response.code() + " (" + (response.receivedResponseAtMillis() - response.sentRequestAtMillis()) + " ms)",
-                    formatHeaders(response.headers()), formatBody(bodyString, response.header(HttpHeaders.CONTENT_TYPE)));
-            return response.newBuilder()
-                    .body(ResponseBody.create(bodyString, body.contentType()))
-                    .build();
-        } catch (IOException ioe) {
-            log.warn("Cannot intercept response body");
+        ResponseBody body = response.body();
+        if (!log.isTraceEnabled() || body == null) {
             return response;
         }
+
+        BodyCapture capture = new BodyCapture(captureBytes);
+        Source capturingSource = new CapturingSource(body.source(), capture, () ->
+                log.trace("\nStatus        : {}\nHeaders       : {}\nResponse body : {}",
+                        response.code() + " (" + (response.receivedResponseAtMillis() - response.sentRequestAtMillis()) + " ms)",
+                        formatHeaders(response.headers()), formatBody(capture, response.header(HttpHeaders.CONTENT_TYPE))));
+
+        return response.newBuilder()
+                .body(ResponseBody.create(Okio.buffer(capturingSource), body.contentType(), body.contentLength()))
+                .build();
     }
 
     private String formatHeaders(Headers headers) {
@@ -82,38 +91,75 @@ public class LoggingInterceptor implements Interceptor, Ordered {
     }
 
     @NotNull
-    private String extractBody(Request request) {
-        if (request.body() == null) {
+    private String formatRequestBody(Request request) {
+        RequestBody requestBody = request.body();
+        if (requestBody == null) {
             return "absent";
         }
-        try {
-            Buffer buffer = new Buffer();
-            request.body().writeTo(buffer);
-            return buffer.readUtf8();
+        if (requestBody.isOneShot()) {
+            return "one-shot, not captured";
+        }
+        BodyCapture capture = new BodyCapture(captureBytes);
+        try (BufferedSink sink = Okio.buffer(Okio.sink(capture))) {
+            requestBody.writeTo(sink);
         } catch (IOException ioe) {
             log.error("Filed to intercept body. Ex: ", ioe);
             return "unreadable";
         }
+        MediaType contentType = requestBody.contentType();
+        return formatBody(capture, contentType != null ? contentType.toString() : null);
     }
 
     @NotNull
-    private String formatBody(@Nullable String body, @Nullable String header) {
-        if (body == null || body.isEmpty() || body.equals("absent")) {
+    private String formatBody(BodyCapture capture, @Nullable String contentType) {
+        if (capture.length() == 0) {
             return "absent";
         }
-        body = Objects.equals(header, MediaType.APPLICATION_OCTET_STREAM_VALUE) ? "binary" : logUtils.format(body);
-        if (body.equals("binary")) {
-            return body;
+        if (!BodyCapture.isTextual(contentType)) {
+            return capture.summary();
+        }
+        String body = SECRET_BODY_PATTERN.matcher(logUtils.format(capture.text())).replaceAll("\"$1\":\"*****\"");
+        return capture.isComplete() ? body : capture.summary() + " " + body;
+    }
+
+    /**
+     * Источник, копирующий каждую прочитанную порцию байт в {@link BodyCapture}. Когда источник исчерпан или
+     * закрыт, единожды вызывает {@code onComplete}
+     */
+    private static final class CapturingSource extends ForwardingSource {
+
+        private final BodyCapture capture;
+        private final Runnable onComplete;
+        private boolean completed;
+
+        private CapturingSource(Source delegate, BodyCapture capture, Runnable onComplete) {
+            super(delegate);
+            this.capture = capture;
+            this.onComplete = onComplete;
+        }
+
+        @Override
+        public long read(@NotNull Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read == -1) {
+                complete();
+            } else {
+                sink.copyTo(capture, sink.size() - read, read);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            complete();
+            super.close();
         }
 
-        String regex = secretBodyParts.stream()
-                .map(Pattern::quote)
-                .reduce((a, b) -> a + "|" + b)  // Объединение всех ключей через |
-                .map(parts -> "\"(" + parts + ")\":\"[\\\\.a-zA-Z0-9-_]+\"")
-                .orElse("");
-        if (!regex.isEmpty()) {
-            body = body.replaceAll(regex, "\"$1\":\"*****\"");
+        private void complete() {
+            if (!completed) {
+                completed = true;
+                onComplete.run();
+            }
         }
-        return body;
     }
-}
\ No newline at end of file
+}
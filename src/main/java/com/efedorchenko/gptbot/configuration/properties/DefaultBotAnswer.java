@@ -14,6 +14,7 @@ public class DefaultBotAnswer {
     @Value("${app.version}")
     private String appVersion;
     private final TelegramProperties telegramProperties;
+    private final YandexProperties yandexProperties;
 
     private final Properties defaultBotAnswers;
 
@@ -69,8 +70,34 @@ public class DefaultBotAnswer {
     public String couldNotRecognizeVoice() {
         return defaultBotAnswers.getProperty(OTHERS_KEY + "could_not_recognize_voice");
     }
-    public String voiceIsLongerThan30s() {
-        return defaultBotAnswers.getProperty(OTHERS_KEY + "voice_is_longer_than_30s");
+    public String voiceIsTooLong() {
+        return defaultBotAnswers.getProperty(OTHERS_KEY + "voice_is_too_long")
+                .formatted(durationLimit(yandexProperties.getRecognizeMaxVoiceSeconds()));
+    }
+
+    /**
+     * Длительность в родительном падеже, как во фразе "не длиннее 5 минут": в минутах, если делится на них
+     * нацело, иначе в секундах
+     */
+    private static String durationLimit(int seconds) {
+        if (seconds % 60 == 0) {
+            int minutes = seconds / 60;
+            return minutes + (isSingularGenitive(minutes) ? " минуты" : " минут");
+        }
+        return seconds + (isSingularGenitive(seconds) ? " секунды" : " секунд");
+    }
+
+    private static boolean isSingularGenitive(int number) {
+        return number % 10 == 1 && number % 100 != 11;
+    }
+    public String serverBusy() {
+        return defaultBotAnswers.getProperty(OTHERS_KEY + "server_busy");
+    }
+    public String rateLimited() {
+        return defaultBotAnswers.getProperty(OTHERS_KEY + "rate_limited");
+    }
+    public String dailyQuotaExceeded() {
+        return defaultBotAnswers.getProperty(OTHERS_KEY + "daily_quota_exceeded");
     }
     public String subscribeForUse() {
         return defaultBotAnswers.getProperty(OTHERS_KEY + "subscribe_for_use")
@@ -0,0 +1,70 @@
+package com.efedorchenko.gptbot.configuration.properties;
+
+import jakarta.validation.constraints.DecimalMax;
+import jakarta.validation.constraints.DecimalMin;
+import jakarta.validation.constraints.Positive;
+import jakarta.validation.constraints.PositiveOrZero;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.ConstructorBinding;
+import org.springframework.validation.annotation.Validated;
+
+import java.util.concurrent.TimeUnit;
+
+@Getter
+@Validated
+@AllArgsConstructor(onConstructor_ = @ConstructorBinding)
+@ConfigurationProperties(prefix = GptLimiterProperties.CONFIGURATION_PREFIX, ignoreUnknownFields = false)
+public class GptLimiterProperties {
+
+    static final String CONFIGURATION_PREFIX = "gpt-limiter";
+
+    /**
+     * Лимит одновременных запросов к {@code YandexGPT} при старте приложения. Дальше лимит подстраивается
+     * автоматически по задержкам и ответам {@code 429 Too Many Requests}
+     */
+    @Positive
+    private final int initialLimit;
+
+    /**
+     * Нижняя граница лимита одновременных запросов
+     */
+    @Positive
+    private final int minLimit;
+
+    /**
+     * Верхняя граница лимита одновременных запросов
+     */
+    @Positive
+    private final int maxLimit;
+
+    /**
+     * Коэффициент, на который умножается лимит при признаках перегрузки модели (мультипликативное уменьшение)
+     */
+    @DecimalMin("0.1")
+    @DecimalMax("0.99")
+    private final double backoffRatio;
+
+    /**
+     * Время ответа модели, превышение которого считается признаком ее перегрузки.
+     * Исчисляется в {@link TimeUnit#MILLISECONDS}
+     */
+    @Positive
+    private final long latencyThresholdMillis;
+
+    /**
+     * Максимальное количество запросов, ожидающих свободного места. Запросы сверх этого
+     * количества сразу отклоняются. Ноль означает, что запросы не ждут вообще
+     */
+    @PositiveOrZero
+    private final int maxQueueSize;
+
+    /**
+     * Максимальное время ожидания свободного места в очереди, после которого запрос
+     * отклоняется. Исчисляется в {@link TimeUnit#MILLISECONDS}
+     */
+    @Positive
+    private final long maxWaitMillis;
+
+}
@@ -0,0 +1,67 @@
+package com.efedorchenko.gptbot.configuration.properties;
+
+import jakarta.validation.constraints.Positive;
+import jakarta.validation.constraints.PositiveOrZero;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.ConstructorBinding;
+import org.springframework.validation.annotation.Validated;
+
+@Getter
+@Validated
+@AllArgsConstructor(onConstructor_ = @ConstructorBinding)
+@ConfigurationProperties(prefix = IntakeProperties.CONFIGURATION_PREFIX, ignoreUnknownFields = false)
+public class IntakeProperties {
+
+    static final String CONFIGURATION_PREFIX = "intake";
+
+    /**
+     * Максимальное количество апдейтов, ожидающих обработки. Апдейты сверх этого количества
+     * не обрабатываются, а юзер сразу получает ответ о том, что бот перегружен
+     */
+    @Positive
+    private final int queueCapacity;
+
+    /**
+     * Количество виртуальных потоков, одновременно обрабатывающих апдейты из очереди
+     */
+    @Positive
+    private final int workers;
+
+    /**
+     * Время ожидания в очереди, за которое апдейт поднимается на один приоритет. Определяет, насколько дольше
+     * апдейты низких приоритетов (голосовые, запросы к {@code YandexART}) могут ждать при постоянной нагрузке
+     */
+    @Positive
+    private final long priorityAgingMillis;
+
+    /**
+     * Окно склейки сообщений для {@code YandexGPT}. Текстовые сообщения одного чата, каждое из которых пришло
+     * в течение этого времени после предыдущего, объединяются в один запрос к модели. {@code 0} отключает склейку
+     */
+    @PositiveOrZero
+    private final long coalesceWindowMillis;
+
+    /**
+     * Максимальная задержка первого сообщения склейки. По ее истечении запрос отправляется, даже если юзер
+     * продолжает писать
+     */
+    @Positive
+    private final long coalesceMaxDelayMillis;
+
+    /**
+     * Максимальное количество сообщений в одной склейке. При его достижении запрос отправляется,
+     * не дожидаясь окончания окна
+     */
+    @Positive
+    private final int coalesceMaxMessages;
+
+    /**
+     * Максимальное количество чатов, для которых в памяти хранится последний известный режим. По нему апдейт
+     * получает приоритет без обращения к Redis в потоке приема апдейтов
+     */
+    @Positive
+    private final int modeHintsMaxEntries;
+
+}
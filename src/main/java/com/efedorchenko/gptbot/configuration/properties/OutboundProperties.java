@@ -0,0 +1,44 @@
+package com.efedorchenko.gptbot.configuration.properties;
+
+import jakarta.validation.constraints.Positive;
+import jakarta.validation.constraints.PositiveOrZero;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.ConstructorBinding;
+import org.springframework.validation.annotation.Validated;
+
+@Getter
+@Validated
+@AllArgsConstructor(onConstructor_ = @ConstructorBinding)
+@ConfigurationProperties(prefix = OutboundProperties.CONFIGURATION_PREFIX, ignoreUnknownFields = false)
+public class OutboundProperties {
+
+    static final String CONFIGURATION_PREFIX = "outbound";
+
+    /**
+     * Максимальное количество запросов к Telegram Bot API в секунду по всем чатам вместе
+     */
+    @Positive
+    private final double globalPerSecond;
+
+    /**
+     * Максимальное количество запросов в секунду в один чат при длительной отправке
+     */
+    @Positive
+    private final double chatPerSecond;
+
+    /**
+     * Количество запросов, которые можно отправить в чат подряд, не дожидаясь {@link OutboundProperties#chatPerSecond}
+     */
+    @Positive
+    private final int chatBurst;
+
+    /**
+     * Сколько раз повторять запрос, получивший ответ {@code 429 Too Many Requests}, прежде чем считать его
+     * неотправленным
+     */
+    @PositiveOrZero
+    private final int maxRetries;
+
+}
@@ -0,0 +1,60 @@
+package com.efedorchenko.gptbot.configuration.properties;
+
+import jakarta.validation.constraints.Positive;
+import jakarta.validation.constraints.PositiveOrZero;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.ConstructorBinding;
+import org.springframework.validation.annotation.Validated;
+
+import java.util.concurrent.TimeUnit;
+
+@Getter
+@Validated
+@AllArgsConstructor(onConstructor_ = @ConstructorBinding)
+@ConfigurationProperties(prefix = QuotaProperties.CONFIGURATION_PREFIX, ignoreUnknownFields = false)
+public class QuotaProperties {
+
+    static final String CONFIGURATION_PREFIX = "quota";
+
+    /**
+     * Включает проверку квот. При выключенной проверке все запросы к нейросетям разрешены
+     */
+    private final boolean enabled;
+
+    /**
+     * Емкость "ведра" запросов юзера - сколько запросов к нейросетям он может сделать подряд, без пауз
+     */
+    @Positive
+    private final int bucketCapacity;
+
+    /**
+     * Скорость пополнения "ведра" запросов юзера - сколько запросов в минуту он может делать в среднем
+     */
+    @Positive
+    private final double refillPerMinute;
+
+    /**
+     * Дневной бюджет токенов {@code YandexGPT} одного юзера. Сутки отсчитываются по московскому времени
+     */
+    @Positive
+    private final long dailyTokenBudget;
+
+    /**
+     * Время, в течение которого решение по юзеру, далекому от своих лимитов, принимается без обращения к Redis.
+     * Исчисляется в {@link TimeUnit#MILLISECONDS}
+     */
+    @Positive
+    private final long localCacheTtlMillis;
+
+    /**
+     * Максимальное количество запросов, которые экземпляр приложения может разрешить юзеру из локального кеша
+     * между обращениями к Redis. Эти запросы заранее списываются из "ведра" юзера в Redis, а неизрасходованные
+     * возвращаются в него по истечении {@link QuotaProperties#localCacheTtlMillis}. Ноль отключает
+     * локальные разрешения, при этом отказы по-прежнему кешируются
+     */
+    @PositiveOrZero
+    private final int maxLocalLease;
+
+}
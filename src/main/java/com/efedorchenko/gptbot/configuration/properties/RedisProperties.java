@@ -32,6 +32,11 @@ public class RedisProperties {
     private final int historyTtlMillis;
     @Positive
     private final int historyQueueCapacity;
+    /**
+     * Максимальный суммарный размер (в символах текста) историй, хранящихся в памяти приложения перед Redis
+     */
+    @Positive
+    private final long historyNearCacheMaxChars;
 
 //     Свойства для кеша RedisConfiguration.userModeRedisTemplate
     @NotBlank
@@ -44,4 +49,16 @@ public class RedisProperties {
     @Positive
     private final int userIsSubTtlMillis;
 
+//     Свойства для кеша распознанных голосовых TranscriptionCache
+    @NotBlank
+    @Pattern(regexp = PREFIX_REGEX)
+    private final String transcriptionPrefix;
+    @Positive
+    private final int transcriptionTtlMillis;
+    /**
+     * Максимальное количество распознанных голосовых, хранящихся в памяти приложения перед Redis
+     */
+    @Positive
+    private final int transcriptionNearCacheMaxEntries;
+
 }
@@ -0,0 +1,44 @@
+package com.efedorchenko.gptbot.configuration.properties;
+
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.Positive;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.ConstructorBinding;
+import org.springframework.validation.annotation.Validated;
+
+@Getter
+@Validated
+@AllArgsConstructor(onConstructor_ = @ConstructorBinding)
+@ConfigurationProperties(prefix = VoiceArchiveProperties.CONFIGURATION_PREFIX, ignoreUnknownFields = false)
+public class VoiceArchiveProperties {
+
+    static final String CONFIGURATION_PREFIX = "voice-archive";
+
+    /**
+     * Директория архива нераспознанных голосовых
+     */
+    @NotBlank
+    private final String directory;
+
+    /**
+     * Сколько голосовых может ждать записи в архив. Голосовые, не поместившиеся в очередь, не архивируются
+     */
+    @Positive
+    private final int queueCapacity;
+
+    /**
+     * Максимальный суммарный размер архива в байтах. При превышении удаляются самые старые дни, а если
+     * удалять больше нечего - новые голосовые не архивируются
+     */
+    @Positive
+    private final long maxTotalBytes;
+
+    /**
+     * Сколько дней хранятся файлы архива
+     */
+    @Positive
+    private final int retentionDays;
+
+}
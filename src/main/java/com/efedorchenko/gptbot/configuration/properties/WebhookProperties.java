@@ -0,0 +1,54 @@
+package com.efedorchenko.gptbot.configuration.properties;
+
+import jakarta.validation.constraints.AssertTrue;
+import jakarta.validation.constraints.NotBlank;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.ConstructorBinding;
+import org.springframework.validation.annotation.Validated;
+
+@Getter
+@Validated
+@AllArgsConstructor(onConstructor_ = @ConstructorBinding)
+@ConfigurationProperties(prefix = WebhookProperties.CONFIGURATION_PREFIX, ignoreUnknownFields = false)
+public class WebhookProperties {
+
+    public static final String CONFIGURATION_PREFIX = "webhook";
+
+    /**
+     * Regexp: от 1 до 256 символов - латинский алфавит, цифры, "_" и "-". Ограничение Telegram на секретный токен
+     */
+    private static final String SECRET_TOKEN_REGEX = "^[A-Za-z0-9_-]{1,256}$";
+
+    /**
+     * Способ получения апдейтов: {@code true} - Telegram сам присылает их на {@link WebhookProperties#url},
+     * {@code false} - бот запрашивает их через {@code getUpdates} (long polling)
+     */
+    private final boolean enabled;
+
+    /**
+     * Публичный {@code https}-адрес, по которому Telegram будет присылать апдейты. Должен вести на
+     * {@link WebhookProperties#path} этого приложения
+     */
+    private final String url;
+
+    /**
+     * Путь, по которому приложение принимает апдейты на своем {@code server.port}
+     */
+    @NotBlank
+    private final String path;
+
+    /**
+     * Секретный токен, который Telegram передает в заголовке {@code X-Telegram-Bot-Api-Secret-Token} каждого
+     * запроса. Запросы без него или с другим токеном отклоняются
+     */
+    private final String secretToken;
+
+    @AssertTrue(message = "webhook.url must be https and webhook.secret-token must match " + SECRET_TOKEN_REGEX)
+    public boolean isConfigured() {
+        return !enabled || (url != null && url.startsWith("https://")
+                            && secretToken != null && secretToken.matches(SECRET_TOKEN_REGEX));
+    }
+
+}
@@ -1,8 +1,10 @@
 package com.efedorchenko.gptbot.configuration.properties;
 
+import jakarta.validation.constraints.Max;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotEmpty;
 import jakarta.validation.constraints.Pattern;
+import jakarta.validation.constraints.Positive;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import org.hibernate.validator.constraints.URL;
@@ -85,4 +87,47 @@ public class YandexProperties {
     @URL(protocol = "https")
     private final String recognizeUrl;
 
+    /**
+     * Максимальная длительность голосового, которое бот соглашается распознать.
+     * Исчисляется в {@link java.util.concurrent.TimeUnit#SECONDS}
+     */
+    @Positive
+    private final int recognizeMaxVoiceSeconds;
+
+    /**
+     * Голосовые длиннее этого значения распознаются по частям не длиннее него. Синхронное распознавание
+     * SpeechKit принимает записи не длиннее 30 секунд, значение оставляет запас на округление границ частей
+     * до страниц {@code Ogg}. Исчисляется в {@link java.util.concurrent.TimeUnit#SECONDS}
+     */
+    @Positive
+    @Max(25)
+    private final int recognizeSegmentSeconds;
+
+    /**
+     * Сколько частей одного голосового распознаются одновременно
+     */
+    @Positive
+    private final int recognizeParallelSegments;
+
+    /**
+     * Включает потоковую генерацию ответов {@code YandexGPT}. Юзер получает первую часть ответа сразу, как
+     * только модель ее сгенерирует, а дальше сообщение дописывается редактированием по мере генерации
+     */
+    private final boolean chatbotStreamEnabled;
+
+    /**
+     * Минимальный интервал между редактированиями сообщения при потоковой генерации ответа. Ограничивает
+     * нагрузку на Telegram API, который не позволяет часто изменять сообщения в одном чате.
+     * Исчисляется в {@link java.util.concurrent.TimeUnit#MILLISECONDS}
+     */
+    @Positive
+    private final long chatbotStreamEditIntervalMillis;
+
+    /**
+     * Максимальное количество входных токенов запроса к {@code YandexGPT}, включая историю переписки и сам
+     * вопрос. Самые старые сообщения истории, не уместившиеся в этот бюджет, модели не отправляются
+     */
+    @Positive
+    private final int chatbotHistoryTokenBudget;
+
 }
@@ -0,0 +1,55 @@
+package com.efedorchenko.gptbot.controller;
+
+import com.efedorchenko.gptbot.configuration.properties.WebhookProperties;
+import com.efedorchenko.gptbot.telegram.UpdateIntakeQueue;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Прием апдейтов в режиме вебхука ({@code webhook.enabled=true})
+ * <p>
+ * Апдейт только проверяется и ставится в {@link UpdateIntakeQueue}, так же как апдейты, полученные через long
+ * polling, поэтому Telegram получает ответ сразу, не дожидаясь обработки. В этом режиме апдейты могут
+ * принимать несколько экземпляров приложения за балансировщиком, но порядок обработки сообщений одного чата
+ * гарантируется только в пределах одного экземпляра
+ */
+@Slf4j
+@RestController
+@ConditionalOnProperty(name = WebhookProperties.CONFIGURATION_PREFIX + ".enabled", havingValue = "true")
+public class TelegramWebhookController {
+
+    private static final String SECRET_TOKEN_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    private final byte[] secretToken;
+    private final UpdateIntakeQueue updateIntakeQueue;
+
+    public TelegramWebhookController(WebhookProperties webhookProperties, UpdateIntakeQueue updateIntakeQueue) {
+        this.secretToken = webhookProperties.getSecretToken().getBytes(StandardCharsets.UTF_8);
+        this.updateIntakeQueue = updateIntakeQueue;
+    }
+
+    @PostMapping(path = "${webhook.path}")
+    public ResponseEntity<Void> receiveUpdate(
+            @RequestHeader(name = SECRET_TOKEN_HEADER, required = false) String receivedToken,
+            @RequestBody Update update) {
+
+        if (receivedToken == null
+            || !MessageDigest.isEqual(secretToken, receivedToken.getBytes(StandardCharsets.UTF_8))) {
+            log.warn("Webhook request with invalid secret token rejected, updateID {}", update.getUpdateId());
+            return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+        }
+        updateIntakeQueue.submit(update);
+        return new ResponseEntity<>(HttpStatus.OK);
+    }
+
+}
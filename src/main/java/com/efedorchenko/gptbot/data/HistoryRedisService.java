@@ -12,11 +12,23 @@ public interface HistoryRedisService {
         return this.getHistory(String.valueOf(userChatId));
     }
 
-    void addMessage(String userChatId, GptMessageUnit gptMessageUnit);
+    default void addMessage(String userChatId, GptMessageUnit gptMessageUnit) {
+        this.addMessages(userChatId, List.of(gptMessageUnit));
+    }
 
     default void addMessage(Long userChatId, GptMessageUnit gptMessageUnit) {
         this.addMessage(String.valueOf(userChatId), gptMessageUnit);
     }
 
+    /**
+     * Атомарно дописывает сообщения в конец истории в переданном порядке, обрезает историю до
+     * {@code redis.history-queue-capacity} последних сообщений и продлевает ее время жизни
+     */
+    void addMessages(String userChatId, List<GptMessageUnit> gptMessageUnits);
+
+    default void addMessages(Long userChatId, List<GptMessageUnit> gptMessageUnits) {
+        this.addMessages(String.valueOf(userChatId), gptMessageUnits);
+    }
+
     void clean(String chatId);
 }
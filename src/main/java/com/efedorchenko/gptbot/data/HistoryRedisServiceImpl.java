@@ -5,17 +5,31 @@ import com.efedorchenko.gptbot.yandex.model.GptMessageUnit;
 import jakarta.validation.constraints.NotNull;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Component;
 
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Component
 public class HistoryRedisServiceImpl implements HistoryRedisService {
 
+    /**
+     * {@code KEYS[1]} - ключ истории, {@code ARGV[1]} - емкость истории, {@code ARGV[2]} - время жизни в
+     * миллисекундах, остальные аргументы - добавляемые сообщения. Возвращает длину истории после обрезки
+     */
+    private static final RedisScript<Long> APPEND_SCRIPT = new DefaultRedisScript<>("""
+            redis.call('RPUSH', KEYS[1], unpack(ARGV, 3))
+            redis.call('LTRIM', KEYS[1], -tonumber(ARGV[1]), -1)
+            redis.call('PEXPIRE', KEYS[1], ARGV[2])
+            return redis.call('LLEN', KEYS[1])
+            """, Long.class);
+
     private final RedisTemplate<String, GptMessageUnit> historyRedisTemplate;
     private final RedisProperties redisProperties;
     private final Duration messHistoryTtl;
@@ -37,12 +51,34 @@ public class HistoryRedisServiceImpl implements HistoryRedisService {
         return gptMessageUnits;
     }
 
+    /**
+     * @return сколько миллисекунд осталось жить истории чата в Redis, {@code -1}, если у ключа нет времени жизни,
+     * и {@code -2}, если истории нет
+     */
+    public long remainingTtlMillis(String userChatId) {
+        Long ttl = historyRedisTemplate.getExpire(redisProperties.getHistoryPrefix() + userChatId, TimeUnit.MILLISECONDS);
+        return ttl != null ? ttl : -2;
+    }
+
+    /**
+     * Выполняется одним Lua-скриптом, то есть за один сетевой вызов и без вклинивания чужих команд
+     * между добавлением, обрезкой и продлением времени жизни
+     */
     @Override
-    public void addMessage(String userChatId, GptMessageUnit gptMessageUnit) {
+    public void addMessages(String userChatId, List<GptMessageUnit> gptMessageUnits) {
+        if (gptMessageUnits.isEmpty()) {
+            return;
+        }
         String key = redisProperties.getHistoryPrefix() + userChatId;
-        historyRedisTemplate.opsForList().rightPush(key, gptMessageUnit);
-        historyRedisTemplate.opsForList().trim(key, -redisProperties.getHistoryQueueCapacity(), -1);
-        historyRedisTemplate.expire(key, messHistoryTtl);
+
+//        Все аргументы сериализуются сериализатором значений шаблона (json), числа при этом остаются числами
+        Object[] args = new Object[gptMessageUnits.size() + 2];
+        args[0] = redisProperties.getHistoryQueueCapacity();
+        args[1] = messHistoryTtl.toMillis();
+        for (int i = 0; i < gptMessageUnits.size(); i++) {
+            args[i + 2] = gptMessageUnits.get(i);
+        }
+        historyRedisTemplate.execute(APPEND_SCRIPT, List.of(key), args);
     }
 
     @Override
@@ -0,0 +1,218 @@
+package com.efedorchenko.gptbot.data;
+
+import com.efedorchenko.gptbot.configuration.RedisConfiguration;
+import com.efedorchenko.gptbot.configuration.properties.RedisProperties;
+import com.efedorchenko.gptbot.yandex.model.GptMessageUnit;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.validation.constraints.NotNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.efedorchenko.gptbot.utils.logging.LogUtils.NETWORK_MARKER;
+
+/**
+ * Двухуровневое хранилище истории сообщений: ограниченный кеш в памяти приложения перед Redis
+ * <p>
+ * Чтение истории активного чата не обращается к Redis: история берется из памяти, а в Redis идет только при
+ * промахе. Запись сквозная - сообщение сначала сохраняется в Redis через {@link HistoryRedisServiceImpl}, затем
+ * дописывается в копию истории в памяти. Загрузка и записи одного чата выполняются под блокировкой чата (одной
+ * из {@link NearCachedHistoryService#LOCK_STRIPES}), поэтому порядок сообщений в памяти и в Redis совпадает.
+ * Сетевые вызовы не выполняются под блокировками самого кеша, чтобы не задерживать операции с другими чатами
+ * <p>
+ * Размер кеша ограничен суммарной длиной текстов ({@code redis.history-near-cache-max-chars}), а не количеством
+ * чатов, потому что длина историй разных юзеров отличается на порядки. Запись в кеше живет не дольше ключа в
+ * Redis: загруженная история истекает вместе с ключом (по его {@code PTTL}), а после записи, продлевающей ключ,
+ * получает полное время жизни {@code redis.history-ttl-millis}. Если приложение запущено в нескольких экземплярах, то после каждого изменения истории экземпляр
+ * публикует идентификатор чата в канал {@link RedisConfiguration#HISTORY_INVALIDATION_CHANNEL}, а остальные
+ * экземпляры удаляют у себя копию истории этого чата
+ */
+@Slf4j
+@Primary
+@Component
+public class NearCachedHistoryService implements HistoryRedisService {
+
+    /** Примерный размер служебных полей одного сообщения, учитываемый в весе записи наравне с символами текста */
+    private static final int UNIT_OVERHEAD_CHARS = 32;
+    private static final int LOCK_STRIPES = 64;
+
+    private final String instanceId = UUID.randomUUID().toString();
+    private final Cache<String, NearHistory> nearCache;
+    private final ReentrantLock[] chatLocks = new ReentrantLock[LOCK_STRIPES];
+
+    private final HistoryRedisServiceImpl redisHistory;
+    private final RedisProperties redisProperties;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    public NearCachedHistoryService(HistoryRedisServiceImpl redisHistory,
+                                    RedisProperties redisProperties,
+                                    StringRedisTemplate stringRedisTemplate,
+                                    RedisMessageListenerContainer listenerContainer,
+                                    MeterRegistry meterRegistry) {
+        this.redisHistory = redisHistory;
+        this.redisProperties = redisProperties;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+
+        this.nearCache = Caffeine.newBuilder()
+                .maximumWeight(redisProperties.getHistoryNearCacheMaxChars())
+                .weigher(NearCachedHistoryService::weigh)
+                .expireAfter(new NearHistoryExpiry())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, nearCache, "history.near");
+        Arrays.setAll(chatLocks, i -> new ReentrantLock());
+    }
+
+    @PostConstruct
+    public void subscribeToInvalidations() {
+        listenerContainer.addMessageListener(
+                (message, pattern) -> onInvalidation(message),
+                new ChannelTopic(RedisConfiguration.HISTORY_INVALIDATION_CHANNEL)
+        );
+    }
+
+    /**
+     * @return изменяемая копия истории, которую вызывающий может дополнять, не затрагивая кеш
+     */
+    @NotNull
+    @Override
+    public List<GptMessageUnit> getHistory(String userChatId) {
+
+        NearHistory history = nearCache.getIfPresent(userChatId);
+        if (history != null) {
+            return new ArrayList<>(history.messages());
+        }
+
+        ReentrantLock lock = lockOf(userChatId);
+        lock.lock();
+        try {
+            history = nearCache.getIfPresent(userChatId);
+            if (history == null) {
+                long ttlMillis = redisHistory.remainingTtlMillis(userChatId);
+                history = new NearHistory(List.copyOf(redisHistory.getHistory(userChatId)),
+                        ttlMillis >= 0 ? ttlMillis : redisProperties.getHistoryTtlMillis());
+                nearCache.put(userChatId, history);
+            }
+            return new ArrayList<>(history.messages());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void addMessages(String userChatId, List<GptMessageUnit> gptMessageUnits) {
+
+        ReentrantLock lock = lockOf(userChatId);
+        lock.lock();
+        try {
+            redisHistory.addMessages(userChatId, gptMessageUnits);
+//            Истории, которой нет в памяти, при следующем чтении будет загружена целиком
+            nearCache.asMap().computeIfPresent(userChatId, (key, history) -> {
+                List<GptMessageUnit> updated = new ArrayList<>(history.messages());
+                updated.addAll(gptMessageUnits);
+                int overflow = updated.size() - redisProperties.getHistoryQueueCapacity();
+                return new NearHistory(List.copyOf(overflow > 0 ? updated.subList(overflow, updated.size()) : updated),
+                        redisProperties.getHistoryTtlMillis());
+            });
+        } finally {
+            lock.unlock();
+        }
+        publishInvalidation(userChatId);
+    }
+
+    @Override
+    public void clean(String chatId) {
+
+        ReentrantLock lock = lockOf(chatId);
+        lock.lock();
+        try {
+            redisHistory.clean(chatId);
+            nearCache.invalidate(chatId);
+        } finally {
+            lock.unlock();
+        }
+        publishInvalidation(chatId);
+    }
+
+    private void publishInvalidation(String chatId) {
+        try {
+            stringRedisTemplate.convertAndSend(RedisConfiguration.HISTORY_INVALIDATION_CHANNEL, instanceId + ":" + chatId);
+        } catch (RuntimeException ex) {
+            log.warn(NETWORK_MARKER, "Cannot publish history invalidation of chat {}. Ex: {}", chatId, ex.getMessage());
+        }
+    }
+
+    private void onInvalidation(Message message) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int separator = body.indexOf(':');
+        if (separator < 0 || body.startsWith(instanceId)) {
+            return;   // Собственное сообщение, копия истории уже актуальна
+        }
+        String chatId = body.substring(separator + 1);
+
+//        Под блокировкой чата, чтобы идущая загрузка не вернула в кеш историю, прочитанную до чужой записи
+        ReentrantLock lock = lockOf(chatId);
+        lock.lock();
+        try {
+            nearCache.invalidate(chatId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock lockOf(String chatId) {
+        return chatLocks[Math.floorMod(chatId.hashCode(), LOCK_STRIPES)];
+    }
+
+    private static int weigh(String chatId, NearHistory history) {
+        long weight = 0;
+        for (GptMessageUnit unit : history.messages()) {
+            weight += UNIT_OVERHEAD_CHARS + (unit.getText() == null ? 0 : unit.getText().length());
+        }
+        return (int) Math.min(Integer.MAX_VALUE, weight);
+    }
+
+    /**
+     * @param ttlMillis сколько жить копии истории с момента загрузки или записи: столько же, сколько ключу в Redis
+     */
+    private record NearHistory(List<GptMessageUnit> messages, long ttlMillis) {
+    }
+
+    private static final class NearHistoryExpiry implements Expiry<String, NearHistory> {
+
+        @Override
+        public long expireAfterCreate(String chatId, NearHistory history, long currentTime) {
+            return TimeUnit.MILLISECONDS.toNanos(history.ttlMillis());
+        }
+
+        @Override
+        public long expireAfterUpdate(String chatId, NearHistory history, long currentTime, long currentDuration) {
+            return TimeUnit.MILLISECONDS.toNanos(history.ttlMillis());
+        }
+
+        @Override
+        public long expireAfterRead(String chatId, NearHistory history, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.efedorchenko.gptbot.data;
+
+public interface QuotaRedisService {
+
+    /**
+     * Проверяет лимиты юзера и, если запрос разрешен, списывает его из лимита частоты запросов
+     */
+    Verdict tryAcquire(long chatId);
+
+    /**
+     * Учитывает токены, потраченные юзером, в его дневном бюджете
+     */
+    void recordTokensSpent(long chatId, long tokens);
+
+    enum Verdict {
+
+        /** Запрос разрешен */
+        ALLOWED,
+
+        /** Юзер делает запросы слишком часто */
+        RATE_LIMITED,
+
+        /** Юзер израсходовал дневной бюджет токенов */
+        DAILY_BUDGET_EXCEEDED
+
+    }
+}
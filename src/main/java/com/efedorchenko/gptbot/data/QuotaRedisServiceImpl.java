@@ -0,0 +1,288 @@
+package com.efedorchenko.gptbot.data;
+
+import com.efedorchenko.gptbot.configuration.properties.QuotaProperties;
+import com.efedorchenko.gptbot.service.BotUserService;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.efedorchenko.gptbot.utils.logging.LogUtils.NETWORK_MARKER;
+
+/**
+ * Квоты юзеров: ограничение частоты запросов к нейросетям и дневной бюджет токенов {@code YandexGPT}
+ * <p>
+ * Частота ограничивается "ведром токенов" ({@code quota.bucket-capacity} запросов подряд, пополнение
+ * {@code quota.refill-per-minute} в минуту), бюджет - суммой токенов, потраченных юзером за текущий день. Оба
+ * лимита хранятся в Redis и проверяются одним Lua-скриптом, то есть за один сетевой вызов и одинаково для всех
+ * экземпляров приложения
+ * <p>
+ * Перед Redis стоит короткоживущий локальный кеш решений. Отказ кешируется до момента, когда запрос снова может
+ * быть разрешен, поэтому повторные запросы юзера, упершегося в лимит, отклоняются без сетевых вызовов. Юзеру,
+ * далекому от обоих лимитов, скрипт выдает небольшой запас запросов ({@code quota.max-local-lease}), заранее
+ * списанный из его "ведра": их экземпляр разрешает сам в течение {@code quota.local-cache-ttl-millis}. Так лимиты
+ * не превышаются даже при нескольких экземплярах приложения. Неизрасходованный запас возвращается в "ведро", когда
+ * локальное решение истекает или заменяется, поэтому юзер не теряет запросы из-за того, что запас не успел
+ * понадобиться. Если в этот момент Redis недоступен, запас теряется и юзер может получить до
+ * {@code quota.max-local-lease} запросов меньше, пока "ведро" не пополнится. Если Redis недоступен при проверке,
+ * запросы разрешаются
+ */
+@Slf4j
+@Component
+public class QuotaRedisServiceImpl implements QuotaRedisService {
+
+    private static final String BUCKET_PREFIX = "quota-bucket-";
+    private static final String TOKENS_PREFIX = "quota-tokens-";
+
+    /** Отказ по дневному бюджету кешируется не дольше этого времени, чтобы изменение бюджета применялось быстро */
+    private static final long MAX_REJECTION_CACHE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * {@code KEYS[1]} - "ведро" юзера (hash: {@code tokens}, {@code ts}), {@code KEYS[2]} - токены, потраченные
+     * за день. {@code ARGV}: емкость ведра, пополнение за миллисекунду, дневной бюджет, максимальный запас
+     * локальных разрешений. Возвращает {@code {вердикт, через сколько мс повторить, выданный запас}}, где
+     * вердикт - порядковый номер {@link QuotaRedisService.Verdict}
+     */
+    private static final RedisScript<List> ACQUIRE_SCRIPT = new DefaultRedisScript<>("""
+            local capacity = tonumber(ARGV[1])
+            local refill_per_ms = tonumber(ARGV[2])
+            local budget = tonumber(ARGV[3])
+            local max_lease = tonumber(ARGV[4])
+            local time = redis.call('TIME')
+            local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+            local spent = tonumber(redis.call('GET', KEYS[2]) or '0')
+            if spent >= budget then
+                return {2, redis.call('PTTL', KEYS[2]), 0}
+            end
+
+            local bucket = redis.call('HMGET', KEYS[1], 'tokens', 'ts')
+            local tokens = tonumber(bucket[1]) or capacity
+            local ts = tonumber(bucket[2]) or now
+            tokens = math.min(capacity, tokens + math.max(0, now - ts) * refill_per_ms)
+            if tokens < 1 then
+                return {1, math.ceil((1 - tokens) / refill_per_ms), 0}
+            end
+
+            tokens = tokens - 1
+            local lease = 0
+            if tokens >= capacity / 2 and spent < budget / 2 then
+                lease = math.min(max_lease, math.floor(tokens / 2))
+                tokens = tokens - lease
+            end
+            redis.call('HSET', KEYS[1], 'tokens', tostring(tokens), 'ts', now)
+            redis.call('PEXPIRE', KEYS[1], math.ceil(capacity / refill_per_ms))
+            return {0, 0, lease}
+            """, List.class);
+
+    /**
+     * {@code KEYS[1]} - "ведро" юзера. {@code ARGV}: емкость ведра, пополнение за миллисекунду, количество
+     * возвращаемых запросов. Если ключа нет, ведро и так считается полным и ничего не делается
+     */
+    private static final RedisScript<Long> RETURN_LEASE_SCRIPT = new DefaultRedisScript<>("""
+            local capacity = tonumber(ARGV[1])
+            local refill_per_ms = tonumber(ARGV[2])
+            local returned = tonumber(ARGV[3])
+            local bucket = redis.call('HMGET', KEYS[1], 'tokens', 'ts')
+            if not bucket[1] then
+                return 0
+            end
+            local time = redis.call('TIME')
+            local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+            local tokens = tonumber(bucket[1])
+            local ts = tonumber(bucket[2]) or now
+            tokens = math.min(capacity, tokens + math.max(0, now - ts) * refill_per_ms + returned)
+            redis.call('HSET', KEYS[1], 'tokens', tostring(tokens), 'ts', now)
+            redis.call('PEXPIRE', KEYS[1], math.ceil(capacity / refill_per_ms))
+            return 1
+            """, Long.class);
+
+    /**
+     * {@code KEYS[1]} - токены, потраченные за день, {@code ARGV[1]} - приращение, {@code ARGV[2]} - время жизни
+     * ключа в миллисекундах (до конца дня). Возвращает потраченные за день токены с учетом приращения
+     */
+    private static final RedisScript<Long> SPEND_SCRIPT = new DefaultRedisScript<>("""
+            local spent = redis.call('INCRBY', KEYS[1], ARGV[1])
+            if redis.call('PTTL', KEYS[1]) < 0 then
+                redis.call('PEXPIRE', KEYS[1], ARGV[2])
+            end
+            return spent
+            """, Long.class);
+
+    private final Cache<Long, LocalDecision> localDecisions;
+
+    private final QuotaProperties quotaProperties;
+    private final BotUserService botUserService;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Counter localHitsCounter;
+    private final Counter rejectedCounter;
+
+    public QuotaRedisServiceImpl(QuotaProperties quotaProperties,
+                                 BotUserService botUserService,
+                                 StringRedisTemplate stringRedisTemplate,
+                                 MeterRegistry meterRegistry) {
+        this.quotaProperties = quotaProperties;
+        this.botUserService = botUserService;
+        this.stringRedisTemplate = stringRedisTemplate;
+
+        this.localDecisions = Caffeine.newBuilder()
+                .expireAfter(new LocalDecisionExpiry())
+                .scheduler(Scheduler.systemScheduler())
+                .removalListener((Long chatId, LocalDecision decision, RemovalCause cause) -> returnLease(chatId, decision))
+                .build();
+        this.localHitsCounter = Counter.builder("quota.local.hits").register(meterRegistry);
+        this.rejectedCounter = Counter.builder("quota.rejected").register(meterRegistry);
+    }
+
+    @Override
+    public Verdict tryAcquire(long chatId) {
+
+        if (!quotaProperties.isEnabled()) {
+            return Verdict.ALLOWED;
+        }
+
+        LocalDecision cached = localDecisions.getIfPresent(chatId);
+        if (cached != null && (cached.verdict != Verdict.ALLOWED || cached.lease.getAndDecrement() > 0)) {
+            localHitsCounter.increment();
+            if (cached.verdict != Verdict.ALLOWED) {
+                rejectedCounter.increment();
+            }
+            return cached.verdict;
+        }
+
+        List<?> result;
+        try {
+            result = stringRedisTemplate.execute(ACQUIRE_SCRIPT, List.of(BUCKET_PREFIX + chatId, tokensKey(chatId)),
+                    String.valueOf(quotaProperties.getBucketCapacity()),
+                    refillPerMillis(),
+                    String.valueOf(quotaProperties.getDailyTokenBudget()),
+                    String.valueOf(quotaProperties.getMaxLocalLease()));
+
+        } catch (RuntimeException ex) {
+            log.warn(NETWORK_MARKER, "Cannot check quota of chat {}, request allowed. Ex: {}", chatId, ex.getMessage());
+            return Verdict.ALLOWED;
+        }
+        if (result == null || result.size() < 3) {
+            log.warn(NETWORK_MARKER, "Unexpected quota script result for chat {}: {}, request allowed", chatId, result);
+            return Verdict.ALLOWED;
+        }
+
+        Verdict verdict = Verdict.values()[((Number) result.get(0)).intValue()];
+        long retryAfterMillis = ((Number) result.get(1)).longValue();
+        int lease = ((Number) result.get(2)).intValue();
+
+        switch (verdict) {
+            case ALLOWED -> {
+                if (lease > 0) {
+                    localDecisions.put(chatId, new LocalDecision(verdict, lease, quotaProperties.getLocalCacheTtlMillis()));
+                } else {
+                    localDecisions.invalidate(chatId);
+                }
+            }
+            case RATE_LIMITED, DAILY_BUDGET_EXCEEDED -> {
+                rejectedCounter.increment();
+                long cacheMillis = retryAfterMillis > 0
+                        ? Math.min(retryAfterMillis, MAX_REJECTION_CACHE_MILLIS)
+                        : quotaProperties.getLocalCacheTtlMillis();
+                localDecisions.put(chatId, new LocalDecision(verdict, 0, cacheMillis));
+            }
+        }
+        return verdict;
+    }
+
+    @Override
+    public void recordTokensSpent(long chatId, long tokens) {
+        if (!quotaProperties.isEnabled() || tokens <= 0) {
+            return;
+        }
+        try {
+            Long spent = stringRedisTemplate.execute(SPEND_SCRIPT, List.of(tokensKey(chatId)),
+                    String.valueOf(tokens),
+                    String.valueOf(botUserService.untilNextStatsDay().plusHours(1).toMillis()));
+
+//            Юзер уже не далек от бюджета, дальше решения по нему принимает только Redis
+            if (spent != null && spent >= quotaProperties.getDailyTokenBudget() / 2) {
+                localDecisions.invalidate(chatId);
+            }
+        } catch (RuntimeException ex) {
+            log.warn(NETWORK_MARKER, "Cannot record {} tokens spent by chat {}. Ex: {}", tokens, chatId, ex.getMessage());
+        }
+    }
+
+    /**
+     * Возвращает в "ведро" юзера запросы, выданные локальному решению, но так и не разрешенные. Запас решения
+     * обнуляется атомарно, поэтому потоки, успевшие получить решение до его удаления, уже не смогут его расходовать
+     */
+    private void returnLease(Long chatId, LocalDecision decision) {
+
+        if (chatId == null || decision == null || decision.verdict() != Verdict.ALLOWED) {
+            return;
+        }
+        int unspent = decision.lease().getAndSet(Integer.MIN_VALUE / 2);
+        if (unspent <= 0) {
+            return;
+        }
+        try {
+            stringRedisTemplate.execute(RETURN_LEASE_SCRIPT, List.of(BUCKET_PREFIX + chatId),
+                    String.valueOf(quotaProperties.getBucketCapacity()),
+                    refillPerMillis(),
+                    String.valueOf(unspent));
+        } catch (RuntimeException ex) {
+            log.warn(NETWORK_MARKER, "Cannot return {} unspent requests to the bucket of chat {}. Ex: {}",
+                    unspent, chatId, ex.getMessage());
+        }
+    }
+
+    private String refillPerMillis() {
+        return String.valueOf(quotaProperties.getRefillPerMinute() / TimeUnit.MINUTES.toMillis(1));
+    }
+
+    private String tokensKey(long chatId) {
+        return TOKENS_PREFIX + chatId + "-" + botUserService.statsToday();
+    }
+
+    /**
+     * Решение по юзеру, принятое Redis и временно действующее локально
+     *
+     * @param lease количество запросов, которые еще можно разрешить локально (только для {@link Verdict#ALLOWED})
+     */
+    private record LocalDecision(Verdict verdict, AtomicInteger lease, long ttlMillis) {
+
+        private LocalDecision(Verdict verdict, int lease, long ttlMillis) {
+            this(verdict, new AtomicInteger(lease), ttlMillis);
+        }
+    }
+
+    private static final class LocalDecisionExpiry implements Expiry<Long, LocalDecision> {
+
+        @Override
+        public long expireAfterCreate(Long chatId, LocalDecision decision, long currentTime) {
+            return TimeUnit.MILLISECONDS.toNanos(decision.ttlMillis());
+        }
+
+        @Override
+        public long expireAfterUpdate(Long chatId, LocalDecision decision, long currentTime, long currentDuration) {
+            return TimeUnit.MILLISECONDS.toNanos(decision.ttlMillis());
+        }
+
+        @Override
+        public long expireAfterRead(Long chatId, LocalDecision decision, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.efedorchenko.gptbot.data;
+
+import com.efedorchenko.gptbot.configuration.properties.RedisProperties;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import static com.efedorchenko.gptbot.utils.logging.LogUtils.NETWORK_MARKER;
+
+/**
+ * Двухуровневый кеш распознанных голосовых: ограниченный LRU-кеш в памяти приложения перед Redis
+ * <p>
+ * Ключ - {@code file_unique_id} голосового, который Telegram присваивает содержимому файла и сохраняет при
+ * пересылке. Поэтому пересланное или повторно отправленное голосовое не скачивается и не распознается заново.
+ * Кешируется только успешно распознанный текст: ошибки SpeechKit и неразборчивые записи распознаются при каждой
+ * отправке
+ * <p>
+ * Недоступность Redis не мешает распознаванию: ошибка логируется, а запрос считается промахом
+ */
+@Slf4j
+@Component
+public class TranscriptionCache {
+
+    private final Cache<String, String> nearCache;
+
+    private final RedisProperties redisProperties;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Counter nearHits;
+    private final Counter redisHits;
+    private final Counter misses;
+
+    public TranscriptionCache(RedisProperties redisProperties,
+                              StringRedisTemplate stringRedisTemplate,
+                              MeterRegistry meterRegistry) {
+        this.redisProperties = redisProperties;
+        this.stringRedisTemplate = stringRedisTemplate;
+
+        this.nearCache = Caffeine.newBuilder()
+                .maximumSize(redisProperties.getTranscriptionNearCacheMaxEntries())
+                .expireAfterWrite(Duration.ofMillis(redisProperties.getTranscriptionTtlMillis()))
+                .build();
+
+        this.nearHits = Counter.builder("voice.transcription.cache").tag("result", "near-hit").register(meterRegistry);
+        this.redisHits = Counter.builder("voice.transcription.cache").tag("result", "redis-hit").register(meterRegistry);
+        this.misses = Counter.builder("voice.transcription.cache").tag("result", "miss").register(meterRegistry);
+    }
+
+    /**
+     * @return распознанный ранее текст голосового с этим {@code file_unique_id}
+     */
+    public Optional<String> get(String fileUniqueId) {
+
+        String text = nearCache.getIfPresent(fileUniqueId);
+        if (text != null) {
+            nearHits.increment();
+            return Optional.of(text);
+        }
+
+        try {
+            text = stringRedisTemplate.opsForValue().get(redisProperties.getTranscriptionPrefix() + fileUniqueId);
+        } catch (RuntimeException ex) {
+            log.warn(NETWORK_MARKER, "Cannot read transcription of voice {} from Redis. Ex: {}", fileUniqueId, ex.getMessage());
+        }
+        if (text == null) {
+            misses.increment();
+            return Optional.empty();
+        }
+        redisHits.increment();
+        nearCache.put(fileUniqueId, text);
+        return Optional.of(text);
+    }
+
+    public void put(String fileUniqueId, String text) {
+
+        nearCache.put(fileUniqueId, text);
+        try {
+            stringRedisTemplate.opsForValue().set(redisProperties.getTranscriptionPrefix() + fileUniqueId, text,
+                    Duration.ofMillis(redisProperties.getTranscriptionTtlMillis()));
+        } catch (RuntimeException ex) {
+            log.warn(NETWORK_MARKER, "Cannot save transcription of voice {} to Redis. Ex: {}", fileUniqueId, ex.getMessage());
+        }
+    }
+
+}
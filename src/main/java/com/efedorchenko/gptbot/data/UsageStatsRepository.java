@@ -0,0 +1,101 @@
+package com.efedorchenko.gptbot.data;
+
+import com.efedorchenko.gptbot.entity.BotUser;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Запись накопленной статистики использования нейросетей в таблицу {@code users}
+ * <p>
+ * Работает в обход JPA: вместо чтения сущности {@link BotUser} и ее полного сохранения счетчики увеличиваются
+ * на стороне БД одним пакетным {@code INSERT ... ON CONFLICT DO UPDATE}. Так приращения от разных экземпляров
+ * приложения не затирают друг друга, а на любое количество юзеров уходит один сетевой вызов
+ * <p>
+ * Одновременно с {@code users} пополняется таблица {@code daily_usage}, в которой хранится расход каждого юзера
+ * за каждый день. Строка дня изменяется только в течение этого дня, после чего остается неизменной
+ */
+@Repository
+@RequiredArgsConstructor
+public class UsageStatsRepository {
+
+    /**
+     * Счетчики {@code ...Today} перезаписываются, если приращение относится к более позднему дню, чем
+     * {@code stats_day}, и не изменяются, если к более раннему (запоздавшее приращение вчерашнего дня)
+     */
+    private static final String USERS_UPSERT_SQL = """
+            INSERT INTO users (chat_id, created_at, last_modified, username, name, stats_day,
+                               yagpt_reqs_total, yaart_reqs_total, tokens_spent_total,
+                               yagpt_reqs_today, yaart_reqs_today, tokens_spent_today)
+            VALUES (?, now(), now(), ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            ON CONFLICT (chat_id) DO UPDATE SET
+                last_modified      = now(),
+                username           = EXCLUDED.username,
+                name               = EXCLUDED.name,
+                stats_day          = GREATEST(users.stats_day, EXCLUDED.stats_day),
+                yagpt_reqs_total   = users.yagpt_reqs_total   + EXCLUDED.yagpt_reqs_total,
+                yaart_reqs_total   = users.yaart_reqs_total   + EXCLUDED.yaart_reqs_total,
+                tokens_spent_total = users.tokens_spent_total + EXCLUDED.tokens_spent_total,
+                yagpt_reqs_today   = CASE WHEN EXCLUDED.stats_day > users.stats_day THEN EXCLUDED.yagpt_reqs_today
+                                          WHEN EXCLUDED.stats_day = users.stats_day THEN users.yagpt_reqs_today + EXCLUDED.yagpt_reqs_today
+                                          ELSE users.yagpt_reqs_today END,
+                yaart_reqs_today   = CASE WHEN EXCLUDED.stats_day > users.stats_day THEN EXCLUDED.yaart_reqs_today
+                                          WHEN EXCLUDED.stats_day = users.stats_day THEN users.yaart_reqs_today + EXCLUDED.yaart_reqs_today
+                                          ELSE users.yaart_reqs_today END,
+                tokens_spent_today = CASE WHEN EXCLUDED.stats_day > users.stats_day THEN EXCLUDED.tokens_spent_today
+                                          WHEN EXCLUDED.stats_day = users.stats_day THEN users.tokens_spent_today + EXCLUDED.tokens_spent_today
+                                          ELSE users.tokens_spent_today END
+            """;
+
+    private static final String DAILY_UPSERT_SQL = """
+            INSERT INTO daily_usage (chat_id, day, yagpt_reqs, yaart_reqs, tokens_spent)
+            VALUES (?, ?, ?, ?, ?)
+            ON CONFLICT (chat_id, day) DO UPDATE SET
+                yagpt_reqs   = daily_usage.yagpt_reqs   + EXCLUDED.yagpt_reqs,
+                yaart_reqs   = daily_usage.yaart_reqs   + EXCLUDED.yaart_reqs,
+                tokens_spent = daily_usage.tokens_spent + EXCLUDED.tokens_spent
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Прибавляет приращения к счетчикам юзеров и к их истории по дням, создавая записи для новых юзеров
+     */
+    @Transactional
+    public void addUsage(List<UsageDelta> deltas) {
+        jdbcTemplate.batchUpdate(USERS_UPSERT_SQL, deltas, deltas.size(), (ps, delta) -> {
+            ps.setLong(1, delta.chatId());
+            ps.setString(2, delta.username());
+            ps.setString(3, delta.name());
+            ps.setObject(4, delta.day());
+            ps.setInt(5, delta.yagptReqs());
+            ps.setInt(6, delta.yaartReqs());
+            ps.setLong(7, delta.tokensSpent());
+            ps.setInt(8, delta.yagptReqs());
+            ps.setInt(9, delta.yaartReqs());
+            ps.setLong(10, delta.tokensSpent());
+        });
+        jdbcTemplate.batchUpdate(DAILY_UPSERT_SQL, deltas, deltas.size(), (ps, delta) -> {
+            ps.setLong(1, delta.chatId());
+            ps.setObject(2, delta.day());
+            ps.setInt(3, delta.yagptReqs());
+            ps.setInt(4, delta.yaartReqs());
+            ps.setLong(5, delta.tokensSpent());
+        });
+    }
+
+    /**
+     * Приращение статистики одного юзера за период между сбросами в БД
+     *
+     * @param day      день статистики, к которому относится приращение
+     * @param username последний известный username юзера
+     * @param name     последнее известное имя юзера
+     */
+    public record UsageDelta(long chatId, LocalDate day, String username, String name, int yagptReqs, int yaartReqs, long tokensSpent) {
+    }
+
+}
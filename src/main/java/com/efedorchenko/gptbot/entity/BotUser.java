@@ -8,6 +8,7 @@ import lombok.*;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.CurrentTimestamp;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 
 import static org.hibernate.annotations.SourceType.VM;
@@ -43,8 +44,33 @@ public class BotUser {
     private int yaartReqsTotal;
     private long tokensSpentTotal;
 
+    /**
+     * День, к которому относятся счетчики {@code ...Today}. Счетчики не обнуляются в полночь: если этот день
+     * не совпадает с текущим, значит за текущий день запросов еще не было, а счетчики будут перезаписаны при
+     * следующей записи статистики. История по дням хранится в таблице {@code daily_usage}
+     * <p>
+     * Поэтому у счетчиков нет обычных геттеров: значение за день читается только через методы, принимающие
+     * текущий день
+     */
+    private LocalDate statsDay;
+
+    @Getter(AccessLevel.NONE)
     private int yagptReqsToday;
+    @Getter(AccessLevel.NONE)
     private int yaartReqsToday;
+    @Getter(AccessLevel.NONE)
     private int tokensSpentToday;
 
+    public int getYagptReqsToday(LocalDate today) {
+        return today.equals(statsDay) ? yagptReqsToday : 0;
+    }
+
+    public int getYaartReqsToday(LocalDate today) {
+        return today.equals(statsDay) ? yaartReqsToday : 0;
+    }
+
+    public int getTokensSpentToday(LocalDate today) {
+        return today.equals(statsDay) ? tokensSpentToday : 0;
+    }
+
 }
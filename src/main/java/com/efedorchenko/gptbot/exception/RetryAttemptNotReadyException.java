@@ -1,10 +1,10 @@
 package com.efedorchenko.gptbot.exception;
 
-import org.springframework.retry.support.RetryTemplate;
+import com.efedorchenko.gptbot.yandex.service.ArtOperationPoller;
 
 /**
- * Исключение бросается исключительно в том случае, когда {@link RetryTemplate} на
- * очередной попытке не смог получить удовлетворительный ответ от сервера
+ * Исключение создается исключительно в том случае, когда {@link ArtOperationPoller} за все
+ * отведенные попытки опроса не смог получить удовлетворительный ответ от сервера
  */
 public class RetryAttemptNotReadyException extends RuntimeException {
 
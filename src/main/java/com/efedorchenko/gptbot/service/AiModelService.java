@@ -1,6 +1,6 @@
 package com.efedorchenko.gptbot.service;
 
-import com.efedorchenko.gptbot.telegram.TelegramExecutor;
+import com.efedorchenko.gptbot.telegram.OutboundDispatcher;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import org.springframework.http.HttpStatus;
 import org.telegram.telegrambots.meta.api.methods.PartialBotApiMethod;
@@ -61,7 +61,9 @@ public interface AiModelService<REQ extends Serializable, RESP> {
      *
      * @param response   десериализованный, необработанный ответ от, который предоставила нейросеть
      * @param sourceMess исходный объект сообщения, послуживший источником данных для нейросети
-     * @return объект, готовый к немедленной отправке посредством {@link TelegramExecutor#send(PartialBotApiMethod)}
+     * @return объект, готовый к немедленной отправке посредством {@link OutboundDispatcher#send(PartialBotApiMethod)}
+     * или {@code null}, если результат будет отправлен юзеру позже самой реализацией (например, когда нейросеть
+     * генерирует контент асинхронно)
      */
     PartialBotApiMethod<? extends Serializable> responseProcess(RESP response, Message sourceMess);
 
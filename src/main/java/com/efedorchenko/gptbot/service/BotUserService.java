@@ -1,26 +1,38 @@
 package com.efedorchenko.gptbot.service;
 
-import com.efedorchenko.gptbot.data.BotUserRepository;
-import lombok.AllArgsConstructor;
-import lombok.extern.slf4j.Slf4j;
-import org.springframework.scheduling.annotation.Scheduled;
+import com.efedorchenko.gptbot.entity.BotUser;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 
-@Slf4j
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+/**
+ * Календарь статистики юзеров
+ * <p>
+ * Счетчики {@code ...Today} сущности {@link BotUser} не обнуляются по расписанию. Каждая запись хранит день,
+ * к которому относятся ее счетчики, а переход на новый день происходит лениво - при следующей записи статистики
+ * этого юзера. Сутки отсчитываются по московскому времени
+ */
 @Component
-@AllArgsConstructor
 public class BotUserService {
 
-    private static final String resetDailyMetricsTZ = "Europe/Moscow";
+    private static final ZoneId STATS_ZONE = ZoneId.of("Europe/Moscow");
 
-    private final BotUserRepository botUserRepository;
+    /**
+     * @return текущий день статистики
+     */
+    public LocalDate statsToday() {
+        return LocalDate.now(STATS_ZONE);
+    }
 
-    @Transactional
-    @Scheduled(cron = "0 0 0 * * *", zone = resetDailyMetricsTZ)   // Каждый день в полночь
-    public void resetDailyMetrics() {
-        botUserRepository.resetDailyMetrics();
-        log.info("Daily metrics have been reset");
+    /**
+     * @return время, оставшееся до начала следующего дня статистики
+     */
+    public Duration untilNextStatsDay() {
+        ZonedDateTime now = ZonedDateTime.now(STATS_ZONE);
+        return Duration.between(now, now.toLocalDate().plusDays(1).atStartOfDay(STATS_ZONE));
     }
 
 }
@@ -1,9 +1,11 @@
 package com.efedorchenko.gptbot.service;
 
 import com.efedorchenko.gptbot.configuration.properties.DefaultBotAnswer;
+import com.efedorchenko.gptbot.configuration.properties.YandexProperties;
+import com.efedorchenko.gptbot.data.TranscriptionCache;
 import com.efedorchenko.gptbot.data.UserModeRedisService;
 import com.efedorchenko.gptbot.exception.GptTelegramBotException;
-import com.efedorchenko.gptbot.exception.RetryAttemptNotReadyException;
+import com.efedorchenko.gptbot.telegram.ChatActionHeartbeat;
 import com.efedorchenko.gptbot.telegram.Mode;
 import com.efedorchenko.gptbot.telegram.TelegramExecutor;
 import com.efedorchenko.gptbot.utils.Helper;
@@ -18,17 +20,17 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Component;
 import org.telegram.telegrambots.meta.api.methods.PartialBotApiMethod;
-import org.telegram.telegrambots.meta.api.methods.send.SendChatAction;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.api.objects.Voice;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.*;
 
 import static com.efedorchenko.gptbot.utils.logging.LogUtils.*;
 
@@ -37,23 +39,14 @@ import static com.efedorchenko.gptbot.utils.logging.LogUtils.*;
 @RequiredArgsConstructor
 public class TelegramService {
 
-    /**
-     * Объект для планирования отправки объектов {@link SendChatAction} - т.е. для уведомления пользователя о том,
-     * что в данный момент бот задан работой. Использует один поток, каждая таска должна быть запущена асинхронно
-     * в виртуальном потоке, чтобы этот шедулер не ждал ее выполнения, а приступал к следующей мгновенно
-     *
-     * @see TelegramService#scheduleChatAction(String chatId, Mode userMode)
-     */
-    private final ScheduledExecutorService singleThreadScheduler;
-
-    private static final long SCHEDULER_RUN_TASK_PERIOD_MILLIS = 5_000L;
-
+    private final ChatActionHeartbeat chatActionHeartbeat;
     private final DefaultBotAnswer defaultBotAnswer;
+    private final YandexProperties yandexProperties;
     private final SpeechRecogniser speechRecogniser;
+    private final TranscriptionCache transcriptionCache;
     private final TelegramExecutor telegramExecutor;
     private final UserModeRedisService userModeCache;
     private final ApplicationContext applicationContext;
-    private final ExecutorService executorServiceOfVirtual;
 
     @Log
     public <REQ extends Serializable, RESP> PartialBotApiMethod<? extends Serializable> processing(
@@ -61,7 +54,7 @@ public class TelegramService {
 
         Message inMess = update.getMessage();
         String chatId = String.valueOf(inMess.getChatId());
-        Future<?> future = scheduleChatAction(chatId, currentMode);
+        ChatActionHeartbeat.Registration chatAction = chatActionHeartbeat.register(chatId, currentMode);
 
         try {
             AiModelService<REQ, RESP> aiModelService = getAiModelService(currentMode);
@@ -84,23 +77,37 @@ public class TelegramService {
             return aiModelService.responseProcess(responseOpt, inMess);
 
         } catch (Exception ex) {
-            return handleException(ex, update);
-
-        } finally {
-            future.cancel(true);
+//            Режим YANDEX_ART_HOLD при успешной отправке запроса снимает сам YandexArtService по завершении генерации
             if (userModeCache.getMode(chatId).equals(Mode.YANDEX_ART_HOLD)) {
                 userModeCache.setMode(chatId, Mode.YANDEX_ART);
             }
+            return handleException(ex, update);
+
+        } finally {
+            chatAction.close();
         }
     }
 
     private VoiceRecResult recogniseVoice(Voice voice) {
 
-        if (voice.getDuration() >= 30) {
-            return VoiceRecResult.builder().answerToErrorMessage(defaultBotAnswer.voiceIsLongerThan30s()).build();
+        if (voice.getDuration() > yandexProperties.getRecognizeMaxVoiceSeconds()) {
+            return VoiceRecResult.builder().answerToErrorMessage(defaultBotAnswer.voiceIsTooLong()).build();
+        }
+        Optional<String> cached = transcriptionCache.get(voice.getFileUniqueId());
+        if (cached.isPresent()) {
+            return VoiceRecResult.builder().recognizedMessage(cached.get()).build();
+        }
+
+        Optional<SpeechKitAnswer> recognizeOpt;
+        try (InputStream voiceStream = telegramExecutor.openVoice(voice)) {
+            recognizeOpt = voice.getDuration() <= yandexProperties.getRecognizeSegmentSeconds()
+                    ? speechRecogniser.doRecognize(voiceStream, voice.getFileSize())
+                    : speechRecogniser.doRecognizeSegmented(voiceStream);
+
+        } catch (TelegramApiException | IOException ex) {
+            log.error(LOGIC_MARKER, "Cannot download voice. {} was thrown. Cause: {}", ex.getClass().getSimpleName(), ex.getMessage());
+            return VoiceRecResult.builder().answerToErrorMessage(defaultBotAnswer.couldNotRecognizeVoice()).build();
         }
-        byte[] voiceBytes = telegramExecutor.downloadVoice(voice);
-        Optional<SpeechKitAnswer> recognizeOpt = speechRecogniser.doRecognize(voiceBytes);
         if (recognizeOpt.isEmpty()) {
             return VoiceRecResult.builder().answerToErrorMessage(defaultBotAnswer.couldNotRecognizeVoice()).build();
         }
@@ -108,6 +115,9 @@ public class TelegramService {
         if (recognized.getErrorMessage() != null) {
             return VoiceRecResult.builder().answerToErrorMessage(recognized.getErrorMessage()).build();
         }
+        if (recognized.getResult() != null) {
+            transcriptionCache.put(voice.getFileUniqueId(), recognized.getResult());
+        }
         return VoiceRecResult.builder().recognizedMessage(recognized.getResult()).build();
     }
 
@@ -117,20 +127,6 @@ public class TelegramService {
                 Objects.requireNonNullElse(mode.getServiceName(), YandexArtService.SERVICE_NAME), AiModelService.class);
     }
 
-    private Future<?> scheduleChatAction(String chatId, Mode mode) {
-
-        SendChatAction sendChatAction = new SendChatAction();
-        sendChatAction.setChatId(chatId);
-        sendChatAction.setAction(mode.getActionType());
-
-        return singleThreadScheduler.scheduleAtFixedRate(() ->
-                        CompletableFuture.runAsync(() -> telegramExecutor.send(sendChatAction), executorServiceOfVirtual),
-                0,
-                SCHEDULER_RUN_TASK_PERIOD_MILLIS,
-                TimeUnit.MILLISECONDS
-        );
-    }
-
     private PartialBotApiMethod<? extends Serializable> handleException(Exception thrown, Update update) {
 
         String chatId = String.valueOf(update.getMessage().getChatId());
@@ -145,12 +141,6 @@ public class TelegramService {
                 return new SendMessage(chatId, defaultBotAnswer.nullPointerEx());
             }
 
-//            Картинка не успела сгенериться за отведенные 6 минут
-            case RetryAttemptNotReadyException ranre -> {
-                log.warn(RANRE_MARKER, ranre.getMessage(), ranre);
-                return new SendMessage(chatId, defaultBotAnswer.retryAttemptNotReadyEx());
-            }
-
             case JsonProcessingException jpe -> {
                 log.error(LOGIC_MARKER, "JsonProcessingException -> Update: {}\nEx: ", Helper.write(update), jpe);
                 return new SendMessage(chatId, defaultBotAnswer.jsonProcessingEx());
@@ -0,0 +1,169 @@
+package com.efedorchenko.gptbot.service;
+
+import com.efedorchenko.gptbot.data.UsageStatsRepository;
+import com.efedorchenko.gptbot.data.UsageStatsRepository.UsageDelta;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.NonTransientDataAccessException;
+import org.springframework.dao.NonTransientDataAccessResourceException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.efedorchenko.gptbot.utils.logging.LogUtils.LOGIC_MARKER;
+
+/**
+ * Накопитель статистики использования нейросетей с отложенной записью в БД
+ * <p>
+ * Каждое обращение к нейросети только увеличивает счетчики юзера в памяти, без обращения к БД. Раз в
+ * {@code stats.flush-interval-millis} все накопленные приращения записываются одним пакетным запросом через
+ * {@link UsageStatsRepository}. Счетчики одного юзера изменяются и забираются на запись под блокировкой его
+ * записи в {@link ConcurrentHashMap}, поэтому приращения не теряются даже при одновременных запросах одного
+ * юзера, а запросы разных юзеров почти никогда не конкурируют за одну блокировку
+ * <p>
+ * Если пакетная запись не удалась, приращения записываются по одному, чтобы одна некорректная строка не мешала
+ * записи остальных. Не записанные приращения возвращаются в накопитель и будут записаны при следующем сбросе.
+ * Приращение, которое БД отвергла {@link UsageStatsAccumulator#MAX_FLUSH_ATTEMPTS} раз подряд, отбрасывается
+ * и целиком пишется в лог. Если БД недоступна, запись по одному прекращается, и такие попытки не учитываются
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class UsageStatsAccumulator {
+
+    private static final int MAX_FLUSH_ATTEMPTS = 5;
+
+    private final ConcurrentHashMap<UsageKey, PendingUsage> pending = new ConcurrentHashMap<>();
+
+    private final BotUserService botUserService;
+    private final UsageStatsRepository usageStatsRepository;
+
+    public void recordGptRequest(long chatId, String username, String name, long tokensSpent) {
+        record(new UsageKey(chatId, botUserService.statsToday()), username, name, 1, 0, tokensSpent);
+    }
+
+    public void recordArtRequest(long chatId, String username, String name) {
+        record(new UsageKey(chatId, botUserService.statsToday()), username, name, 0, 1, 0);
+    }
+
+    @PreDestroy
+    @Scheduled(fixedDelayString = "${stats.flush-interval-millis}")
+    public void flush() {
+
+        List<FlushedUsage> flushed = new ArrayList<>();
+        for (UsageKey key : pending.keySet()) {
+            PendingUsage usage = pending.remove(key);
+            if (usage != null) {
+                flushed.add(new FlushedUsage(usage.toDelta(key), usage.failedAttempts));
+            }
+        }
+        if (flushed.isEmpty()) {
+            return;
+        }
+        flushed.sort(Comparator.comparing(usage -> usage.delta().day()));   // Приращения прошедшего дня не должны идти после текущего
+
+        try {
+            usageStatsRepository.addUsage(flushed.stream().map(FlushedUsage::delta).toList());
+            log.debug("Usage stats of {} users flushed", flushed.size());
+
+        } catch (RuntimeException ex) {
+            log.warn(LOGIC_MARKER, "Cannot flush usage stats of {} users in one batch, flushing one by one. Ex: {}", flushed.size(), ex.getMessage());
+            flushOneByOne(flushed);
+        }
+    }
+
+    private void flushOneByOne(List<FlushedUsage> flushed) {
+
+        boolean databaseAvailable = true;
+        for (FlushedUsage usage : flushed) {
+            UsageDelta delta = usage.delta();
+            int failedAttempts = usage.failedAttempts();
+            if (databaseAvailable) {
+                try {
+                    usageStatsRepository.addUsage(List.of(delta));
+                    continue;
+                } catch (RuntimeException ex) {
+                    if (!isRejectedRow(ex)) {
+                        databaseAvailable = false;
+                        log.error(LOGIC_MARKER, "Cannot flush usage stats, will retry on the next flush. Ex: ", ex);
+                    } else if (++failedAttempts >= MAX_FLUSH_ATTEMPTS) {
+                        log.error(LOGIC_MARKER, "Usage stats {} rejected {} times, dropped. Ex: ", delta, failedAttempts, ex);
+                        continue;
+                    } else {
+                        log.warn(LOGIC_MARKER, "Usage stats {} rejected, will retry on the next flush. Ex: {}", delta, ex.getMessage());
+                    }
+                }
+            }
+            record(new UsageKey(delta.chatId(), delta.day()), delta.username(), delta.name(),
+                    delta.yagptReqs(), delta.yaartReqs(), delta.tokensSpent(), failedAttempts);
+        }
+    }
+
+    /**
+     * @return {@code true}, если БД отвергла саму строку (нарушение ограничения, некорректные данные), а не была
+     * недоступна
+     */
+    private static boolean isRejectedRow(RuntimeException ex) {
+        return ex instanceof NonTransientDataAccessException && !(ex instanceof NonTransientDataAccessResourceException);
+    }
+
+    private void record(UsageKey usageKey, String username, String name, int yagptReqs, int yaartReqs, long tokensSpent) {
+        record(usageKey, username, name, yagptReqs, yaartReqs, tokensSpent, 0);
+    }
+
+    private void record(UsageKey usageKey, String username, String name, int yagptReqs, int yaartReqs, long tokensSpent,
+                        int failedAttempts) {
+        pending.compute(usageKey, (key, usage) -> {
+            if (usage == null) {
+                usage = new PendingUsage();
+            }
+            usage.username = username;
+            usage.name = name;
+            usage.yagptReqs += yagptReqs;
+            usage.yaartReqs += yaartReqs;
+            usage.tokensSpent += tokensSpent;
+            usage.failedAttempts = Math.max(usage.failedAttempts, failedAttempts);
+            return usage;
+        });
+    }
+
+    /**
+     * Приращения накапливаются отдельно по дням, чтобы запрос, сделанный до полуночи, но записанный
+     * в БД после нее, попал в статистику своего дня
+     */
+    private record UsageKey(long chatId, LocalDate day) {
+    }
+
+    /**
+     * @param failedAttempts сколько раз подряд БД отвергла приращение
+     */
+    private record FlushedUsage(UsageDelta delta, int failedAttempts) {
+    }
+
+    /**
+     * Изменяется только внутри {@link ConcurrentHashMap#compute} и читается только после удаления из
+     * {@link UsageStatsAccumulator#pending}, поэтому синхронизация полей не нужна
+     */
+    private static final class PendingUsage {
+
+        private String username;
+        private String name;
+        private int yagptReqs;
+        private int yaartReqs;
+        private long tokensSpent;
+
+        /** Сколько раз подряд БД отвергла это приращение */
+        private int failedAttempts;
+
+        private UsageDelta toDelta(UsageKey key) {
+            return new UsageDelta(key.chatId(), key.day(), username, name, yagptReqs, yaartReqs, tokensSpent);
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.efedorchenko.gptbot.telegram;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.api.methods.ActionType;
+import org.telegram.telegrambots.meta.api.methods.send.SendChatAction;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Общий реестр индикаторов действий бота ("печатает...", "отправляет фото...") в чатах
+ * <p>
+ * Обработка запроса регистрирует свой чат и {@link Mode#getActionType()} на время работы и снимает регистрацию
+ * по завершении. Единственная периодическая задача раз в {@link ChatActionHeartbeat#PERIOD_MILLIS} обходит
+ * зарегистрированные чаты и отправляет в каждый одно действие, сколько бы запросов этого чата ни обрабатывалось
+ * одновременно. Количество таймеров не зависит от нагрузки, а юзер не получает дублирующихся индикаторов.
+ * Действия отправляются через {@link OutboundDispatcher} с самым низким приоритетом
+ * <p>
+ * Telegram показывает действие около 5 секунд, поэтому в только что зарегистрированный чат действие отправляется
+ * сразу, а при ближайшем обходе чат пропускается, если действие в него отправлялось меньше полупериода назад
+ */
+@Component
+public class ChatActionHeartbeat {
+
+    private static final long PERIOD_MILLIS = 5_000L;
+    private static final long MIN_RESEND_NANOS = TimeUnit.MILLISECONDS.toNanos(PERIOD_MILLIS / 2);
+
+    private final Map<String, ChatAction> activeChats = new ConcurrentHashMap<>();
+
+    private final OutboundDispatcher outboundDispatcher;
+    private final ScheduledExecutorService singleThreadScheduler;
+
+    private ScheduledFuture<?> ticker;
+
+    public ChatActionHeartbeat(OutboundDispatcher outboundDispatcher,
+                               ScheduledExecutorService singleThreadScheduler,
+                               MeterRegistry meterRegistry) {
+        this.outboundDispatcher = outboundDispatcher;
+        this.singleThreadScheduler = singleThreadScheduler;
+
+        Gauge.builder("telegram.chat-actions.active", activeChats, Map::size).register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        ticker = singleThreadScheduler.scheduleAtFixedRate(this::sweep, PERIOD_MILLIS, PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        ticker.cancel(false);
+    }
+
+    /**
+     * Регистрирует чат на время обработки запроса в режиме {@code mode}. Если в чате уже обрабатывается другой
+     * запрос, отправляется действие последнего зарегистрированного режима
+     *
+     * @return регистрация, которую нужно закрыть по завершении обработки. Для режима без действия регистрация
+     * ничего не делает
+     */
+    public Registration register(String chatId, Mode mode) {
+
+        ActionType actionType = mode.getActionType();
+        if (actionType == null) {
+            return () -> {
+            };
+        }
+
+        ChatAction registered = activeChats.compute(chatId, (key, current) -> {
+            if (current == null) {
+                return new ChatAction(actionType, 1);
+            }
+            return new ChatAction(actionType, current.holders + 1, current.lastSentNanos);
+        });
+        if (registered.holders == 1) {
+            send(chatId, registered);
+        }
+
+        AtomicBoolean closed = new AtomicBoolean();
+        return () -> {
+            if (closed.compareAndSet(false, true)) {
+                activeChats.computeIfPresent(chatId, (key, current) -> current.holders > 1
+                        ? new ChatAction(current.actionType, current.holders - 1, current.lastSentNanos)
+                        : null);
+            }
+        };
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        activeChats.forEach((chatId, chatAction) -> {
+            if (now - chatAction.lastSentNanos >= MIN_RESEND_NANOS) {
+                send(chatId, chatAction);
+            }
+        });
+    }
+
+    private void send(String chatId, ChatAction chatAction) {
+
+        chatAction.lastSentNanos = System.nanoTime();
+        SendChatAction sendChatAction = new SendChatAction();
+        sendChatAction.setChatId(chatId);
+        sendChatAction.setAction(chatAction.actionType);
+        outboundDispatcher.send(sendChatAction);
+    }
+
+    /**
+     * Регистрация чата в {@link ChatActionHeartbeat}. Повторное закрытие ничего не делает
+     */
+    @FunctionalInterface
+    public interface Registration extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Действие, отправляемое в чат, и количество обрабатываемых в нем запросов. Изменения количества создают
+     * новый объект, а время последней отправки переносится в него
+     */
+    private static final class ChatAction {
+
+        private final ActionType actionType;
+        private final int holders;
+        private volatile long lastSentNanos;
+
+        private ChatAction(ActionType actionType, int holders) {
+            this(actionType, holders, System.nanoTime() - MIN_RESEND_NANOS);
+        }
+
+        private ChatAction(ActionType actionType, int holders, long lastSentNanos) {
+            this.actionType = actionType;
+            this.holders = holders;
+            this.lastSentNanos = lastSentNanos;
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.efedorchenko.gptbot.telegram;
+
+import jakarta.annotation.Nullable;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Последовательные "полосы" обработки апдейтов, по одной на чат
+ * <p>
+ * Гарантирует, что в каждый момент времени обрабатывается не больше одного апдейта из одного чата, а апдейты
+ * одного чата обрабатываются строго в порядке поступления. Апдейты разных чатов друг друга не ждут. Полоса
+ * существует, только пока у чата есть необработанные апдейты: как только очередь чата опустела, запись о нем
+ * удаляется, поэтому простаивающие чаты не занимают ни памяти, ни потоков
+ *
+ * @param <T> тип элемента, который проходит через полосу
+ */
+class ChatLanes<T> {
+
+    private final ConcurrentHashMap<Long, ArrayDeque<T>> lanes = new ConcurrentHashMap<>();
+    private final Function<T, Long> chatIdExtractor;
+
+    /**
+     * @param chatIdExtractor функция получения идентификатора чата из элемента. Если она вернула
+     *                        {@code null}, то элемент не привязан к чату и обрабатывается без очереди
+     */
+    ChatLanes(Function<T, Long> chatIdExtractor) {
+        this.chatIdExtractor = chatIdExtractor;
+    }
+
+    /**
+     * Добавляет элемент в полосу его чата
+     *
+     * @return {@code true}, если элемент можно обрабатывать немедленно (полоса была свободна), {@code false} -
+     * если он поставлен в очередь за другими апдейтами своего чата и будет возвращен из
+     * {@link ChatLanes#complete(Object)} после завершения обработки предыдущего
+     */
+    boolean offer(T element) {
+        Long chatId = chatIdExtractor.apply(element);
+        if (chatId == null) {
+            return true;
+        }
+
+        boolean[] runNow = new boolean[1];
+        lanes.compute(chatId, (key, lane) -> {
+            if (lane == null) {
+                runNow[0] = true;
+                lane = new ArrayDeque<>();
+            }
+            lane.addLast(element);
+            return lane;
+        });
+        return runNow[0];
+    }
+
+    /**
+     * Отмечает завершение обработки элемента, ранее разрешенного к обработке
+     *
+     * @return следующий элемент того же чата, который теперь можно обрабатывать, или {@link Optional#empty()},
+     * если очередь чата пуста (в этом случае полоса удаляется)
+     */
+    Optional<T> complete(T element) {
+        Long chatId = chatIdExtractor.apply(element);
+        if (chatId == null) {
+            return Optional.empty();
+        }
+
+        Object[] next = new Object[1];
+        lanes.computeIfPresent(chatId, (key, lane) -> {
+            lane.pollFirst();   // Сам завершенный элемент, он всегда в голове полосы
+            next[0] = lane.peekFirst();
+            return lane.isEmpty() ? null : lane;
+        });
+
+        @SuppressWarnings("unchecked")
+        T nextElement = (T) next[0];
+        return Optional.ofNullable(nextElement);
+    }
+
+    /**
+     * @return количество чатов, у которых есть необработанные апдейты
+     */
+    int activeLanes() {
+        return lanes.size();
+    }
+
+    @Nullable
+    static Long chatIdOf(Update update) {
+        return update.hasMessage() ? update.getMessage().getChatId() : null;
+    }
+
+}
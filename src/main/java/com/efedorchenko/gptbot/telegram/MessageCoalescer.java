@@ -0,0 +1,158 @@
+package com.efedorchenko.gptbot.telegram;
+
+import lombok.extern.slf4j.Slf4j;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.efedorchenko.gptbot.utils.logging.LogUtils.LOGIC_MARKER;
+
+/**
+ * Склейка быстро следующих друг за другом текстовых сообщений одного чата
+ * <p>
+ * Юзеры часто разбивают один вопрос на несколько сообщений, отправленных подряд. Без склейки каждое из них
+ * стало бы отдельным запросом к {@code YandexGPT} со всей историей диалога. Первое такое сообщение задерживается
+ * на {@code intake.coalesce-window-millis}, а каждое следующее, пришедшее за это время, дописывается к его тексту
+ * через перенос строки и снова откладывает отправку на то же окно. Когда юзер делает паузу длиннее окна, дальше
+ * передается один апдейт с объединенным текстом, поэтому модель получает один вопрос, а в историю попадает одно
+ * сообщение. Общая задержка первого сообщения не превышает {@code intake.coalesce-max-delay-millis}, сколько бы
+ * сообщений ни приходило
+ * <p>
+ * Сообщение, которое склеивать нельзя (команда, голосовое и т.д.), сначала выталкивает накопленную склейку
+ * своего чата, поэтому порядок сообщений внутри чата не нарушается
+ *
+ * @param <T> тип элемента, содержащего апдейт
+ */
+@Slf4j
+class MessageCoalescer<T> {
+
+    private final ConcurrentHashMap<Long, Batch> batches = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+    private final long windowMillis;
+    private final long maxDelayMillis;
+    private final int maxMessages;
+    private final Function<T, Update> updateExtractor;
+    private final Consumer<T> downstream;
+
+    /**
+     * @param updateExtractor функция получения апдейта из элемента
+     * @param downstream      получатель элементов, прошедших через склейку. Вызывается под блокировкой записи
+     *                        чата, поэтому не должен выполнять долгих операций
+     */
+    MessageCoalescer(ScheduledExecutorService scheduler, long windowMillis, long maxDelayMillis, int maxMessages,
+                     Function<T, Update> updateExtractor, Consumer<T> downstream) {
+        this.scheduler = scheduler;
+        this.windowMillis = windowMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxMessages = maxMessages;
+        this.updateExtractor = updateExtractor;
+        this.downstream = downstream;
+    }
+
+    /**
+     * Принимает апдейт. Склеиваемый апдейт может быть передан дальше позже, в потоке планировщика
+     *
+     * @param element     элемент с входящим апдейтом
+     * @param coalescible {@code true}, если это текст для {@code YandexGPT}, который можно склеить с соседними
+     * @return {@code true}, если апдейт дописан к уже ожидающей склейке и отдельно передан дальше не будет
+     */
+    boolean offer(T element, boolean coalescible) {
+
+        Long chatId = ChatLanes.chatIdOf(updateExtractor.apply(element));
+        if (chatId == null || windowMillis == 0) {
+            downstream.accept(element);
+            return false;
+        }
+
+        boolean[] merged = new boolean[1];
+        batches.compute(chatId, (key, batch) -> {
+            if (!coalescible) {
+                if (batch != null) {
+                    batch.release();
+                }
+                downstream.accept(element);
+                return null;
+            }
+
+            if (batch == null) {
+                Batch created = new Batch(element, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis));
+                created.schedule(chatId, windowMillis);
+                return created;
+            }
+            batch.elements.add(element);
+            merged[0] = true;
+            long untilDeadlineMillis = TimeUnit.NANOSECONDS.toMillis(batch.deadlineNanos - System.nanoTime());
+            if (batch.elements.size() >= maxMessages || untilDeadlineMillis <= 0) {
+                batch.release();
+                return null;
+            }
+            batch.timer.cancel(false);
+            batch.schedule(chatId, Math.min(windowMillis, untilDeadlineMillis));
+            return batch;
+        });
+        return merged[0];
+    }
+
+    private void expire(Long chatId, Batch expired, int timerGeneration) {
+        try {
+            batches.computeIfPresent(chatId, (key, batch) -> {
+                if (batch != expired || batch.timerGeneration != timerGeneration) {
+                    return batch;   // Склейка уже вытолкнута или отложена новым сообщением
+                }
+                batch.release();
+                return null;
+            });
+        } catch (RuntimeException ex) {
+            log.error(LOGIC_MARKER, "Cannot release coalesced messages of chat {}. Ex: ", chatId, ex);
+        }
+    }
+
+    private class Batch {
+
+        private final List<T> elements = new ArrayList<>();
+        private final long deadlineNanos;
+        private ScheduledFuture<?> timer;
+        private int timerGeneration;
+
+        private Batch(T first, long deadlineNanos) {
+            elements.add(first);
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Вызывается только внутри {@link ConcurrentHashMap#compute}. Сработавший, но не успевший отмениться
+         * прежний таймер распознается по номеру и склейку не выталкивает
+         */
+        private void schedule(Long chatId, long delayMillis) {
+            int generation = ++timerGeneration;
+            timer = scheduler.schedule(() -> expire(chatId, this, generation), delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Передает дальше первый элемент склейки, предварительно заменив текст его апдейта текстом всех сообщений
+         */
+        private void release() {
+            timer.cancel(false);
+            T first = elements.getFirst();
+            if (elements.size() > 1) {
+                Message firstMessage = updateExtractor.apply(first).getMessage();
+                firstMessage.setText(elements.stream()
+                        .map(element -> updateExtractor.apply(element).getMessage().getText())
+                        .collect(Collectors.joining("\n")));
+                log.debug("Coalesced {} messages of chat {} into one", elements.size(), firstMessage.getChatId());
+            }
+            downstream.accept(first);
+        }
+    }
+
+}
@@ -0,0 +1,380 @@
+package com.efedorchenko.gptbot.telegram;
+
+import com.efedorchenko.gptbot.configuration.properties.OutboundProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.api.methods.PartialBotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.*;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.DeleteMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.efedorchenko.gptbot.utils.logging.LogUtils.LOGIC_MARKER;
+
+/**
+ * Очередь исходящих запросов к Telegram Bot API с учетом ограничений Telegram на частоту запросов
+ * <p>
+ * Запросы отправляются асинхронно, вызывающий код получает {@link CompletableFuture} с результатом. Единственный
+ * поток-диспетчер выбирает следующий запрос так, чтобы не превысить общий лимит ({@code outbound.global-per-second})
+ * и лимит каждого чата ({@code outbound.chat-per-second} с запасом {@code outbound.chat-burst}). Оба лимита - "ведра
+ * токенов". Сама отправка выполняется в виртуальном потоке, а запросы одного чата отправляются строго по одному
+ * <p>
+ * Среди доступных для отправки запросов первыми идут ответы юзерам, затем редактирования и удаления сообщений,
+ * затем действия в чате ({@link Priority}), внутри приоритета - в порядке поступления. Пока запрос ждет отправки,
+ * новое редактирование или удаление того же сообщения заменяет его, как и новое действие в том же чате, поэтому
+ * отправляется только последнее состояние сообщения. Редактирование не заменяет ожидающее удаление, а
+ * отбрасывается: сообщение все равно будет удалено
+ * <p>
+ * Если Telegram все же ответил {@code 429 Too Many Requests}, чат не получает запросов указанное в ответе время
+ * ({@code retry_after}), после чего запрос повторяется, не более {@code outbound.max-retries} раз
+ */
+@Slf4j
+@Component
+public class OutboundDispatcher {
+
+    private static final String NO_CHAT = "";
+    private static final String CHAT_ACTION_KEY = "action";
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<String, ChatOutbox> outboxes = new HashMap<>();
+    private final TokenBucket globalBucket;
+    private final AtomicInteger pending = new AtomicInteger();
+    private long sequence;
+
+    private final OutboundProperties outboundProperties;
+    private final TelegramExecutor telegramExecutor;
+    private final ExecutorService executorServiceOfVirtual;
+
+    private final Counter rateLimitedCounter;
+    private final Counter coalescedCounter;
+
+    private Thread dispatcher;
+
+    public OutboundDispatcher(OutboundProperties outboundProperties,
+                              TelegramExecutor telegramExecutor,
+                              ExecutorService executorServiceOfVirtual,
+                              MeterRegistry meterRegistry) {
+        this.outboundProperties = outboundProperties;
+        this.telegramExecutor = telegramExecutor;
+        this.executorServiceOfVirtual = executorServiceOfVirtual;
+
+        double globalPerSecond = outboundProperties.getGlobalPerSecond();
+        this.globalBucket = new TokenBucket(Math.max(1, (int) globalPerSecond), globalPerSecond, System.nanoTime());
+
+        Gauge.builder("telegram.outbound.pending", pending, AtomicInteger::get).register(meterRegistry);
+        this.rateLimitedCounter = Counter.builder("telegram.outbound.rate-limited").register(meterRegistry);
+        this.coalescedCounter = Counter.builder("telegram.outbound.coalesced").register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        dispatcher = Thread.ofVirtual().name("telegram-outbound-dispatcher").start(this::runDispatcher);
+    }
+
+    @PreDestroy
+    public void stop() {
+        dispatcher.interrupt();
+        List<Outgoing> abandoned = new ArrayList<>();
+        lock.lock();
+        try {
+            outboxes.values().forEach(outbox -> abandoned.addAll(outbox.items));
+            outboxes.clear();
+        } finally {
+            lock.unlock();
+        }
+        abandoned.forEach(outgoing -> outgoing.future.complete(null));
+    }
+
+    /**
+     * Ставит запрос в очередь на отправку
+     *
+     * @return future, завершающийся {@code true}, если запрос успешно отправлен, и {@code false}, если отправить
+     * его не удалось. Исключением future не завершается
+     */
+    public CompletableFuture<Boolean> send(PartialBotApiMethod<?> method) {
+        return submit(method).thenApply(Objects::nonNull);
+    }
+
+    /**
+     * Ставит сообщение в очередь на отправку
+     *
+     * @return future с отправленным сообщением или с {@code null}, если отправить его не удалось
+     */
+    public CompletableFuture<Message> sendAndReturn(SendMessage message) {
+        return submit(message).thenApply(result -> result instanceof Message sent ? sent : null);
+    }
+
+    private CompletableFuture<Serializable> submit(PartialBotApiMethod<?> method) {
+
+        String chatId = chatIdOf(method);
+        String coalesceKey = coalesceKeyOf(method);
+        lock.lock();
+        try {
+            ChatOutbox outbox = outboxes.computeIfAbsent(chatId, id -> new ChatOutbox(id, System.nanoTime(),
+                    new TokenBucket(outboundProperties.getChatBurst(), outboundProperties.getChatPerSecond(), System.nanoTime())));
+
+            if (coalesceKey != null) {
+                for (Outgoing waiting : outbox.items) {
+                    if (coalesceKey.equals(waiting.coalesceKey)) {
+                        if (waiting.method instanceof DeleteMessage && method instanceof EditMessageText) {
+                            coalescedCounter.increment();   // Удаление побеждает: сообщение все равно исчезнет
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        waiting.method = method;
+                        coalescedCounter.increment();
+                        return waiting.future;
+                    }
+                }
+            }
+
+            Outgoing outgoing = new Outgoing(method, Priority.of(method), coalesceKey, sequence++);
+            outbox.items.add(outgoing);
+            pending.incrementAndGet();
+            changed.signal();
+            return outgoing.future;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runDispatcher() {
+        lock.lock();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                long now = System.nanoTime();
+                ChatOutbox next = null;
+                long nearestEligibleAt = Long.MAX_VALUE;
+                for (Iterator<ChatOutbox> it = outboxes.values().iterator(); it.hasNext(); ) {
+                    ChatOutbox outbox = it.next();
+                    if (outbox.isIdle(now)) {
+                        it.remove();   // Ведро чата полное, так что новое ведро при следующем запросе ничего не нарушит
+                        continue;
+                    }
+                    long eligibleAt = outbox.eligibleAt(now);
+                    if (eligibleAt > now) {
+                        nearestEligibleAt = Math.min(nearestEligibleAt, eligibleAt);
+                    } else if (next == null || outbox.items.peek().compareTo(next.items.peek()) < 0) {
+                        next = outbox;
+                    }
+                }
+
+                long globalAvailableAt = globalBucket.availableAt(now);
+                if (next == null || globalAvailableAt > now) {
+                    long wakeAt = next == null ? nearestEligibleAt : globalAvailableAt;
+                    if (wakeAt == Long.MAX_VALUE) {
+                        changed.await();
+                    } else {
+                        changed.awaitNanos(wakeAt - now);
+                    }
+                    continue;
+                }
+
+                globalBucket.take(now);
+                next.bucket.take(now);
+                next.inFlight = true;
+                ChatOutbox outbox = next;
+                Outgoing outgoing = next.items.poll();
+                executorServiceOfVirtual.execute(() -> execute(outbox, outgoing));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void execute(ChatOutbox outbox, Outgoing outgoing) {
+
+        Serializable result = null;
+        Integer retryAfterSeconds = null;
+        try {
+            result = telegramExecutor.sendForResult(outgoing.method);
+        } catch (TelegramApiRequestException tooManyRequests) {
+            retryAfterSeconds = TelegramExecutor.retryAfterSeconds(tooManyRequests);
+        } catch (RuntimeException ex) {
+            log.error(LOGIC_MARKER, "Unexpected exception while sending {}. Ex: ", outgoing.method, ex);
+        }
+
+        lock.lock();
+        try {
+            outbox.inFlight = false;
+            if (retryAfterSeconds != null) {
+                rateLimitedCounter.increment();
+                outbox.blockedUntilNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(retryAfterSeconds);
+                if (outgoing.attempts++ < outboundProperties.getMaxRetries()) {
+                    log.warn(LOGIC_MARKER, "Too many requests to Telegram, chat '{}' is paused for {} s", outbox.chatId, retryAfterSeconds);
+                    outbox.items.add(outgoing);   // Сохраняет свой номер, поэтому снова окажется первым в чате
+                    changed.signal();
+                    return;
+                }
+                log.error(LOGIC_MARKER, "Too many requests to Telegram, giving up after {} attempts. Cannot send this object: {}",
+                        outgoing.attempts, outgoing.method);
+            }
+            pending.decrementAndGet();
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        outgoing.future.complete(result);
+    }
+
+    private static String chatIdOf(PartialBotApiMethod<?> method) {
+        String chatId = switch (method) {
+            case SendMessage sendMessage -> sendMessage.getChatId();
+            case SendPhoto sendPhoto -> sendPhoto.getChatId();
+            case SendVoice sendVoice -> sendVoice.getChatId();
+            case SendSticker sendSticker -> sendSticker.getChatId();
+            case SendChatAction sendChatAction -> sendChatAction.getChatId();
+            case EditMessageText editMessageText -> editMessageText.getChatId();
+            case DeleteMessage deleteMessage -> deleteMessage.getChatId();
+            default -> NO_CHAT;
+        };
+        return chatId != null ? chatId : NO_CHAT;
+    }
+
+    @Nullable
+    private static String coalesceKeyOf(PartialBotApiMethod<?> method) {
+        return switch (method) {
+            case EditMessageText edit when edit.getMessageId() != null -> "message-" + edit.getMessageId();
+            case DeleteMessage delete when delete.getMessageId() != null -> "message-" + delete.getMessageId();
+            case SendChatAction ignored -> CHAT_ACTION_KEY;
+            default -> null;
+        };
+    }
+
+    /**
+     * Приоритет исходящего запроса, в порядке убывания
+     */
+    private enum Priority {
+
+        ANSWER, EDIT, CHAT_ACTION;
+
+        private static Priority of(PartialBotApiMethod<?> method) {
+            return switch (method) {
+                case SendChatAction ignored -> CHAT_ACTION;
+                case EditMessageText ignored -> EDIT;
+                case DeleteMessage ignored -> EDIT;
+                default -> ANSWER;
+            };
+        }
+    }
+
+    /**
+     * Запрос, ожидающий отправки. Поле {@code method} заменяется при склейке, все поля изменяются только под
+     * блокировкой диспетчера
+     */
+    private static final class Outgoing implements Comparable<Outgoing> {
+
+        private final Priority priority;
+        @Nullable
+        private final String coalesceKey;
+        private final long sequence;
+        private final CompletableFuture<Serializable> future = new CompletableFuture<>();
+        private PartialBotApiMethod<?> method;
+        private int attempts;
+
+        private Outgoing(PartialBotApiMethod<?> method, Priority priority, @Nullable String coalesceKey, long sequence) {
+            this.method = method;
+            this.priority = priority;
+            this.coalesceKey = coalesceKey;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Outgoing other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Ожидающие запросы одного чата и его лимиты
+     */
+    private static final class ChatOutbox {
+
+        private final String chatId;
+        private final PriorityQueue<Outgoing> items = new PriorityQueue<>();
+        private final TokenBucket bucket;
+        private long blockedUntilNanos;
+        private boolean inFlight;
+
+        private ChatOutbox(String chatId, long now, TokenBucket bucket) {
+            this.chatId = chatId;
+            this.blockedUntilNanos = now;
+            this.bucket = bucket;
+        }
+
+        /**
+         * @return момент, начиная с которого можно отправить следующий запрос чата, или {@link Long#MAX_VALUE},
+         * если отправлять нечего или запрос чата уже отправляется
+         */
+        private long eligibleAt(long now) {
+            if (inFlight || items.isEmpty()) {
+                return Long.MAX_VALUE;
+            }
+            return Math.max(bucket.availableAt(now), blockedUntilNanos);
+        }
+
+        private boolean isIdle(long now) {
+            return !inFlight && items.isEmpty() && now - blockedUntilNanos >= 0 && bucket.isFull(now);
+        }
+    }
+
+    /**
+     * "Ведро токенов": не больше {@code capacity} запросов подряд, пополнение {@code perSecond} токенов в секунду
+     */
+    private static final class TokenBucket {
+
+        private final int capacity;
+        private final double perNano;
+        private double tokens;
+        private long refilledAt;
+
+        private TokenBucket(int capacity, double perSecond, long now) {
+            this.capacity = capacity;
+            this.perNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+            this.tokens = capacity;
+            this.refilledAt = now;
+        }
+
+        private long availableAt(long now) {
+            refill(now);
+            return tokens >= 1 ? now : now + (long) Math.ceil((1 - tokens) / perNano);
+        }
+
+        private void take(long now) {
+            refill(now);
+            tokens -= 1;
+        }
+
+        private boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * perNano);
+            refilledAt = now;
+        }
+    }
+
+}
@@ -7,24 +7,17 @@ import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.api.methods.PartialBotApiMethod;
 import org.telegram.telegrambots.meta.api.objects.Update;
 
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-
 @Slf4j
 @Component
 public class TelegramBot extends TelegramLongPollingBot {
 
     private final TelegramProperties telegramProperties;
-    private final TelegramUpdateHandler telegramUpdateHandler;
-    private final ExecutorService executorServiceOfVirtual;
+    private final UpdateIntakeQueue updateIntakeQueue;
 
-    public TelegramBot(TelegramProperties telegramProperties,
-                       TelegramUpdateHandler telegramUpdateHandler,
-                       ExecutorService executorServiceOfVirtual) {
+    public TelegramBot(TelegramProperties telegramProperties, UpdateIntakeQueue updateIntakeQueue) {
         super(telegramProperties.getToken());
         this.telegramProperties = telegramProperties;
-        this.telegramUpdateHandler = telegramUpdateHandler;
-        this.executorServiceOfVirtual = executorServiceOfVirtual;
+        this.updateIntakeQueue = updateIntakeQueue;
     }
 
     @Override
@@ -33,19 +26,23 @@ public class TelegramBot extends TelegramLongPollingBot {
     }
 
     /**
-     * Точка входа в приложение со стороны Телеграм-бота.
+     * Точка входа в приложение со стороны Телеграм-бота. Апдейт ставится в {@link UpdateIntakeQueue},
+     * которая передает его в {@link TelegramUpdateHandler} в порядке приоритета
      * <p>
      * Метод первично валидирует принятый объект, после чего направляет на маршрутизацию и обработку. После обработки,
-     * если результат не {@code null} - ответ направляется  в {@link TelegramExecutor#send(PartialBotApiMethod)} для
+     * если результат не {@code null} - ответ направляется  в {@link OutboundDispatcher#send(PartialBotApiMethod)} для
      * отправки контента юзеру. Если результат, возвращенный обработчиком {@link TelegramDistributor#distribute(Update)}
      * равен {@code null} - то он будет проигнорирован.
      * Так же метод отдельно логирует основные стадии работы бота - ПРИЕМ апдейта, ОБРАБОТКА и ОТПРАВКА
+     * <p>
+     * Используется только в режиме long polling. В режиме вебхука апдейты в {@link UpdateIntakeQueue} ставит
+     * {@link com.efedorchenko.gptbot.controller.TelegramWebhookController}
      *
      * @param update корневой объект, содержащий всю информацию о пришедшем обновлении
      */
     @Override
     public void onUpdateReceived(Update update) {
-        CompletableFuture.runAsync(() -> telegramUpdateHandler.handleUpdate(update), executorServiceOfVirtual);
+        updateIntakeQueue.submit(update);
     }
 
 }
@@ -3,6 +3,7 @@ package com.efedorchenko.gptbot.telegram;
 import com.efedorchenko.gptbot.configuration.properties.DefaultBotAnswer;
 import com.efedorchenko.gptbot.configuration.properties.TelegramProperties;
 import com.efedorchenko.gptbot.data.HistoryRedisService;
+import com.efedorchenko.gptbot.data.QuotaRedisService;
 import com.efedorchenko.gptbot.data.UserModeRedisService;
 import com.efedorchenko.gptbot.service.TelegramService;
 import com.efedorchenko.gptbot.utils.logging.Log;
@@ -47,6 +48,7 @@ public class TelegramDistributor {
     private final TelegramExecutor telegramExecutor;
     private final DefaultBotAnswer defaultBotAnswer;
     private final UserModeRedisService userModeCache;
+    private final QuotaRedisService quotaService;
     private final TelegramProperties telegramProperties;
 
      public static final Set<String> rightStatuses = Set.of("creator", "administrator", "member", "restricted");
@@ -57,8 +59,10 @@ public class TelegramDistributor {
                                TelegramService telegramService,
                                DefaultBotAnswer defaultBotAnswer,
                                TelegramExecutor telegramExecutor,
+                               QuotaRedisService quotaService,
                                TelegramProperties telegramProperties) {
         this.userModeCache = userModeCache;
+        this.quotaService = quotaService;
         this.telegramService = telegramService;
         this.defaultBotAnswer = defaultBotAnswer;
         this.telegramProperties = telegramProperties;
@@ -122,6 +126,18 @@ public class TelegramDistributor {
             return commandReactMap.getOrDefault(inMess.getText(), unsupportedCommandReact).apply(chatId);
         }
 
+//        Квоты проверяются до обращения к нейросетям, чтобы один юзер не занимал их в ущерб остальным
+        switch (quotaService.tryAcquire(inMess.getChatId())) {
+            case RATE_LIMITED -> {
+                return new SendMessage(chatId, defaultBotAnswer.rateLimited());
+            }
+            case DAILY_BUDGET_EXCEEDED -> {
+                return new SendMessage(chatId, defaultBotAnswer.dailyQuotaExceeded());
+            }
+            case ALLOWED -> {
+            }
+        }
+
 //        Main processing
 //        PartialBotApiMethod<? extends Serializable> processingResult = telegramService.processing(currentMode, update);
 //        return isSubscribeFuture.join() ? processingResult : new SendMessage(chatId, defaultBotAnswer.subscribeForUse());
@@ -24,7 +24,6 @@ import org.telegram.telegrambots.meta.api.objects.chatmember.ChatMember;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
 
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 
@@ -36,104 +35,112 @@ import static com.efedorchenko.gptbot.utils.logging.LogUtils.LOGIC_MARKER;
 public class TelegramExecutor extends DefaultAbsSender {
 
     private static final String RIGHT_DEFAULT_STATUS = "member";
+    private static final int TOO_MANY_REQUESTS = 429;
 
     protected TelegramExecutor(TelegramProperties telegramProperties) {
         super(new DefaultBotOptions(), telegramProperties.getToken());
     }
 
     /**
-     * Метод для непосредственной оправки сообщения на сервера Telegram. В случае ошибки отправки исключение
-     * логируется как {@code TelegramApiException was thrown. Ex: ex} и подавляется
+     * Метод для непосредственной оправки сообщения на сервера Telegram. Ошибки отправки логируются и подавляются,
+     * кроме ответа {@code 429 Too Many Requests}, чтобы вызывающий код мог повторить отправку через указанное
+     * Telegram время
+     * <p>
+     * Отправляет сразу, в вызывающем потоке и без учета ограничений Telegram на частоту запросов. Ответы юзерам
+     * нужно отправлять через {@link OutboundDispatcher}
      *
-     * @param method {@code @NotNull} Объект сообщения, готового к отправке
-     * @return true, если сообщение было успешно отправлено, иначе false
+     * @return результат метода (например, отправленный {@link Message}) или {@code null}, если отправить не удалось
+     * @throws TelegramApiRequestException если Telegram ответил {@code 429 Too Many Requests},
+     *                                     см. {@link TelegramExecutor#retryAfterSeconds(TelegramApiException)}
      */
     @Log
-    public boolean send(PartialBotApiMethod<?> method) {
-
-        boolean suc = true;
+    @Nullable
+    public Serializable sendForResult(PartialBotApiMethod<?> method) throws TelegramApiRequestException {
 
         try {
-            switch (method) {
+            return switch (method) {
                 case SendSticker sendSticker -> execute(sendSticker);
                 case SendPhoto sendPhoto -> execute(sendPhoto);
                 case SendVoice sendVoice -> execute(sendVoice);
 
                 case SendMessage sendMessage -> {
                     sendMessage.enableMarkdown(true);
-                    execute(sendMessage);
+                    yield execute(sendMessage);
                 }
                 case EditMessageText editMessageText -> {
                     editMessageText.enableMarkdown(true);
-                    execute(editMessageText);
+                    yield execute(editMessageText);
                 }
                 case BotApiMethod<? extends Serializable> other -> execute(other);
 
                 default -> {
                     log.error(LOGIC_MARKER, "Unexpected value to DefaultAbsSender.execute(): {}", method.getClass());
-                    suc = false;
+                    yield null;
                 }
-            }
-            return suc;
+            };
         } catch (TelegramApiException firstEx) {
+            rethrowIfTooManyRequests(firstEx);
 
 //          fail. Maybe without markdown will send?
             try {
                 if (method instanceof SendMessage mess) {
                     mess.enableMarkdownV2(false);
-                    execute(mess);
+                    Message sent = execute(mess);
 
                     log.warn(LOGIC_MARKER, "Markdown disable. Ex:{}", firstEx.getMessage());
-                    return true;
+                    return sent;
                 }
                 if (method instanceof EditMessageText edit) {
                     edit.enableMarkdown(false);
-                    execute(edit);
+                    Serializable edited = execute(edit);
 
                     log.warn(LOGIC_MARKER, "Markdown disable. Ex: {}", firstEx.getMessage());
-                    return true;
+                    return edited;
                 }
 
 //            epic fail
             } catch (TelegramApiException secondEx) {
+                rethrowIfTooManyRequests(secondEx);
                 log.error(LOGIC_MARKER, "TelegramApiException was thrown. Cannot send text messages with markdown and without it. Mess: {}\n\nExes:\n\nFirst(with md): {}\n\nSecond(without md):", method, firstEx, secondEx);
-                return false;
+                return null;
             }
 
             log.error(LOGIC_MARKER, "TelegramApiException was thrown. Cannot send this object: {}, ex:", method, firstEx);
-            return false;
+            return null;
         }
     }
 
     /**
-     * Метод для отправки сообщения и возвращаемым значением {@link Message}.
-     * Возвращается {@code null}, если не удалось отправить сообщение. Это значит
-     * что было выброшено исключение, которое было подавлено и залогировано
-     *
-     * @param messToSend сообщение для отправки
-     * @return успешно отправленное сообщение
+     * @return через сколько секунд Telegram разрешает повторить запрос, если исключение - ответ
+     * {@code 429 Too Many Requests}, иначе {@code null}
      */
     @Nullable
-    public Message sendAndReturn(SendMessage messToSend) {
-        try {
-            return execute(messToSend);
-        } catch (TelegramApiException ex) {
-            log.error(LOGIC_MARKER, "TelegramApiException was thrown. Cause: ", ex);
+    public static Integer retryAfterSeconds(TelegramApiException ex) {
+        if (ex instanceof TelegramApiRequestException requestEx && Integer.valueOf(TOO_MANY_REQUESTS).equals(requestEx.getErrorCode())) {
+            return requestEx.getParameters() != null && requestEx.getParameters().getRetryAfter() != null
+                    ? requestEx.getParameters().getRetryAfter()
+                    : 1;
         }
         return null;
     }
 
-    public byte[] downloadVoice(Voice voice) {
-
-        try (InputStream is = downloadFileAsStream(execute(new GetFile(voice.getFileId())))) {
-            return is.readAllBytes();
-
-        } catch (TelegramApiException | IOException ex) {
-            log.error(LOGIC_MARKER, "{} was thrown. Cause: {}", ex.getClass().getSimpleName(), ex.getMessage());
-            return new byte[0];
+    private static void rethrowIfTooManyRequests(TelegramApiException ex) throws TelegramApiRequestException {
+        if (retryAfterSeconds(ex) != null) {
+            throw (TelegramApiRequestException) ex;
         }
     }
 
+    /**
+     * Открывает поток скачивания голосового сообщения с серверов Telegram. Файл не скачивается заранее,
+     * байты поступают по мере чтения потока
+     *
+     * @return поток, который должен закрыть вызывающий код
+     * @throws TelegramApiException если не удалось получить файл
+     */
+    public InputStream openVoice(Voice voice) throws TelegramApiException {
+        return downloadFileAsStream(execute(new GetFile(voice.getFileId())));
+    }
+
     @Cacheable(
             key = "#chatId",
             cacheNames = RedisConfiguration.USER_IS_SUB_CACHE_NAME,
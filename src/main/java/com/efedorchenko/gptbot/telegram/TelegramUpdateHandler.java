@@ -15,7 +15,7 @@ import static com.efedorchenko.gptbot.utils.logging.LogUtils.*;
 @RequiredArgsConstructor
 public class TelegramUpdateHandler {
 
-    private final TelegramExecutor telegramExecutor;
+    private final OutboundDispatcher outboundDispatcher;
     private final TelegramDistributor telegramDistributor;
 
     public void handleUpdate(Update update) {
@@ -29,11 +29,9 @@ public class TelegramUpdateHandler {
             try {
                 log.debug(BEGUN, update.getUpdateId());
                 Optional.ofNullable(telegramDistributor.distribute(update))
-                        .ifPresentOrElse(distributed -> {
-                            telegramExecutor.send(distributed);
-                            log.debug(FINISHED_NORMALLY, update.getUpdateId());
-
-                        }, () -> log.debug(FINISHED_NORMALLY_NULL, update.getUpdateId()));
+                        .ifPresentOrElse(distributed -> outboundDispatcher.send(distributed)
+                                        .thenRun(() -> log.debug(FINISHED_NORMALLY, update.getUpdateId())),
+                                () -> log.debug(FINISHED_NORMALLY_NULL, update.getUpdateId()));
 
             } catch (Throwable t) {
                 log.error(LOGIC_MARKER, FILED_UNHANDLED, update.getUpdateId(), t);
@@ -0,0 +1,264 @@
+package com.efedorchenko.gptbot.telegram;
+
+import com.efedorchenko.gptbot.configuration.properties.DefaultBotAnswer;
+import com.efedorchenko.gptbot.configuration.properties.IntakeProperties;
+import com.efedorchenko.gptbot.data.UserModeRedisService;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.efedorchenko.gptbot.utils.logging.LogUtils.LOGIC_MARKER;
+
+/**
+ * Ограниченная очередь входящих апдейтов с приоритетами, стоящая между {@link TelegramBot} и
+ * {@link TelegramUpdateHandler}
+ * <p>
+ * Апдейты обрабатываются фиксированным количеством виртуальных потоков ({@code intake.workers}), а ожидающие
+ * апдейты выбираются в порядке {@link Priority}: сначала команды и другие дешевые ответы, затем текст для
+ * {@code YandexGPT}, затем голосовые сообщения и в последнюю очередь запросы к {@code YandexART}. Внутри одного
+ * приоритета сохраняется порядок поступления. Чтобы постоянный поток текста не задерживал голосовые и запросы к
+ * {@code YandexART} бесконечно, апдейт поднимается на один приоритет за каждые {@code intake.priority-aging-millis}
+ * ожидания: апдейт обходит апдейты более высокого приоритета, поступившие позже него больше чем на это время,
+ * умноженное на разницу приоритетов. Если в очереди уже {@code intake.queue-capacity} апдейтов, новый
+ * апдейт не принимается, а юзер сразу получает ответ {@link DefaultBotAnswer#serverBusy()}. Так во время пиков
+ * расход памяти не растет, а дешевые команды продолжают отвечать быстро
+ * <p>
+ * Приоритеты действуют только между разными чатами: апдейты одного чата проходят через {@link ChatLanes} и
+ * попадают в очередь воркеров по одному, строго в порядке поступления. Следующий апдейт чата становится доступен
+ * воркерам только после завершения обработки предыдущего, поэтому сообщения одного юзера не обгоняют друг друга
+ * и не обрабатываются одновременно, а разные чаты по-прежнему обрабатываются параллельно
+ * <p>
+ * Перед попаданием в очередь текст для {@code YandexGPT} проходит через {@link MessageCoalescer}: несколько
+ * сообщений, отправленных юзером подряд, превращаются в один запрос к модели
+ * <p>
+ * Приоритет определяется без обращения к Redis, чтобы не блокировать поток приема апдейтов: режим чата берется
+ * из локальной подсказки, которую воркер обновляет после обработки каждого апдейта чата. Подсказка может
+ * отставать (например, после завершения генерации изображения), но влияет только на порядок обработки, а
+ * обработчик сам читает актуальный режим. Текст чата, режим которого еще неизвестен, обрабатывается с
+ * приоритетом {@link Priority#GPT_TEXT}, но не склеивается, так как может оказаться запросом к {@code YandexART}
+ */
+@Slf4j
+@Component
+public class UpdateIntakeQueue {
+
+    private final PriorityBlockingQueue<QueuedUpdate> queue = new PriorityBlockingQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ChatLanes<QueuedUpdate> chatLanes = new ChatLanes<>(queued -> ChatLanes.chatIdOf(queued.update));
+    private final MessageCoalescer<QueuedUpdate> coalescer;
+    private final List<Thread> workers = new ArrayList<>();
+    private final Cache<Long, Mode> modeHints;
+
+    private final IntakeProperties intakeProperties;
+    private final DefaultBotAnswer defaultBotAnswer;
+    private final OutboundDispatcher outboundDispatcher;
+    private final UserModeRedisService userModeCache;
+    private final TelegramUpdateHandler telegramUpdateHandler;
+
+    private final Timer waitTimer;
+    private final Counter rejectedCounter;
+    private final Counter coalescedCounter;
+
+    public UpdateIntakeQueue(IntakeProperties intakeProperties,
+                             DefaultBotAnswer defaultBotAnswer,
+                             OutboundDispatcher outboundDispatcher,
+                             UserModeRedisService userModeCache,
+                             TelegramUpdateHandler telegramUpdateHandler,
+                             ScheduledExecutorService singleThreadScheduler,
+                             MeterRegistry meterRegistry) {
+        this.intakeProperties = intakeProperties;
+        this.defaultBotAnswer = defaultBotAnswer;
+        this.outboundDispatcher = outboundDispatcher;
+        this.userModeCache = userModeCache;
+        this.telegramUpdateHandler = telegramUpdateHandler;
+        this.coalescer = new MessageCoalescer<>(singleThreadScheduler,
+                intakeProperties.getCoalesceWindowMillis(), intakeProperties.getCoalesceMaxDelayMillis(),
+                intakeProperties.getCoalesceMaxMessages(),
+                QueuedUpdate::update, this::enqueue);
+        this.modeHints = Caffeine.newBuilder()
+                .maximumSize(intakeProperties.getModeHintsMaxEntries())
+                .build();
+
+        Gauge.builder("telegram.intake.queue", size, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("telegram.intake.lanes", chatLanes, ChatLanes::activeLanes).register(meterRegistry);
+        this.waitTimer = Timer.builder("telegram.intake.wait").register(meterRegistry);
+        this.rejectedCounter = Counter.builder("telegram.intake.rejected").register(meterRegistry);
+        this.coalescedCounter = Counter.builder("telegram.intake.coalesced").register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void startWorkers() {
+        for (int i = 0; i < intakeProperties.getWorkers(); i++) {
+            workers.add(Thread.ofVirtual().name("intake-" + i).start(this::runWorker));
+        }
+    }
+
+    @PreDestroy
+    public void stopWorkers() {
+        workers.forEach(Thread::interrupt);
+    }
+
+    /**
+     * Ставит апдейт в очередь на обработку. Метод не блокирует вызывающий поток
+     *
+     * @param update входящий апдейт
+     * @return {@code true}, если апдейт принят, {@code false} - если очередь переполнена и апдейт отклонен
+     */
+    public boolean submit(Update update) {
+
+        Mode modeHint = modeHintOf(update);
+        Priority priority = classify(update, modeHint);
+        if (size.incrementAndGet() > intakeProperties.getQueueCapacity()) {
+            size.decrementAndGet();
+            rejectedCounter.increment();
+            rejectBusy(update);
+            return false;
+        }
+        long now = System.nanoTime();
+        long rankNanos = now + priority.ordinal() * TimeUnit.MILLISECONDS.toNanos(intakeProperties.getPriorityAgingMillis());
+        QueuedUpdate queued = new QueuedUpdate(update, priority, sequence.getAndIncrement(), now, rankNanos);
+        if (coalescer.offer(queued, priority == Priority.GPT_TEXT && modeHint != null)) {
+            size.decrementAndGet();   // Апдейт стал частью другого и отдельно обрабатываться не будет
+            coalescedCounter.increment();
+        }
+        return true;
+    }
+
+    private void enqueue(QueuedUpdate queued) {
+        if (chatLanes.offer(queued)) {
+            queue.add(queued);
+        }
+    }
+
+    private void runWorker() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                process(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void process(QueuedUpdate queued) {
+        size.decrementAndGet();
+        waitTimer.record(System.nanoTime() - queued.enqueuedAtNanos, TimeUnit.NANOSECONDS);
+        try {
+            telegramUpdateHandler.handleUpdate(queued.update);
+        } catch (Throwable t) {
+            log.error(LOGIC_MARKER, "Intake worker caught an unhandled exception. Ex: ", t);
+        } finally {
+            refreshModeHint(queued.update);
+            chatLanes.complete(queued).ifPresent(queue::add);
+        }
+    }
+
+    @Nullable
+    private Mode modeHintOf(Update update) {
+        Long chatId = ChatLanes.chatIdOf(update);
+        return chatId != null ? modeHints.getIfPresent(chatId) : null;
+    }
+
+    /**
+     * Запоминает режим чата после обработки апдейта: команды и генерация изображений могли его изменить
+     */
+    private void refreshModeHint(Update update) {
+        Long chatId = ChatLanes.chatIdOf(update);
+        if (chatId == null) {
+            return;
+        }
+        try {
+            modeHints.put(chatId, userModeCache.getMode(chatId));
+        } catch (RuntimeException ex) {
+            modeHints.invalidate(chatId);
+            log.warn("Cannot get user mode of chat {} to prioritize next updates. Ex: {}", chatId, ex.getMessage());
+        }
+    }
+
+    private Priority classify(Update update, @Nullable Mode modeHint) {
+
+        if (!update.hasMessage()) {
+            return Priority.COMMAND;
+        }
+        Message message = update.getMessage();
+        if (message.isCommand() || message.getPinnedMessage() != null || (!message.hasText() && !message.hasVoice())) {
+            return Priority.COMMAND;
+        }
+        if (message.hasVoice()) {
+            return Priority.VOICE;
+        }
+        if (modeHint == null) {
+            return Priority.GPT_TEXT;
+        }
+        return switch (modeHint) {
+            case YANDEX_ART -> Priority.ART;
+            case YANDEX_ART_HOLD -> Priority.COMMAND;   // Ответ "подожди еще немного" не требует обращения к нейросети
+            default -> Priority.GPT_TEXT;
+        };
+    }
+
+    private void rejectBusy(Update update) {
+        if (!update.hasMessage()) {
+            return;
+        }
+        String chatId = String.valueOf(update.getMessage().getChatId());
+        log.warn("Update {} rejected, intake queue is full", update.getUpdateId());
+        outboundDispatcher.send(new SendMessage(chatId, defaultBotAnswer.serverBusy()));
+    }
+
+    /**
+     * Приоритет обработки апдейта. Чем меньше порядковый номер, тем раньше будет обработан апдейт
+     */
+    enum Priority {
+
+        /** Команды бота и другие апдейты, ответ на которые не требует обращения к нейросетям */
+        COMMAND,
+
+        /** Текстовое сообщение для {@code YandexGPT} */
+        GPT_TEXT,
+
+        /** Голосовое сообщение, требующее распознавания */
+        VOICE,
+
+        /** Запрос на генерацию изображения {@code YandexART} */
+        ART
+
+    }
+
+    /**
+     * @param rankNanos момент поступления, сдвинутый на {@code intake.priority-aging-millis} за каждую ступень
+     *                  приоритета. Апдейты выбираются в порядке возрастания этого значения, поэтому очередность
+     *                  не меняется, пока апдейт лежит в очереди, а апдейт низкого приоритета со временем обходит
+     *                  новые апдейты высокого
+     */
+    private record QueuedUpdate(Update update, Priority priority, long sequence, long enqueuedAtNanos, long rankNanos)
+            implements Comparable<QueuedUpdate> {
+
+        @Override
+        public int compareTo(@NotNull QueuedUpdate other) {
+            int byRank = Long.signum(rankNanos - other.rankNanos);
+            return byRank != 0 ? byRank : Long.compare(sequence, other.sequence);
+        }
+    }
+
+}
@@ -19,8 +19,8 @@ public @interface Log {
     /**
      * Индексы параметров, которые необходимо исключить из логирования, начиная с нуля. Если пустой,
      * все параметры будут заблокированы. Если под указанным индексом нет параметра (например,
-     * когда метод принимает 3 параметра, и указано {@code @Log(exclude = {2, 3}}), то будет
-     * выброшено исключение {@link IndexOutOfBoundsException}
+     * когда метод принимает 3 параметра, и указано {@code @Log(exclude = {2, 3}}), то при первом вызове
+     * будет залогирована ошибка, а параметры метода логироваться не будут
      */
     int[] exclude() default {};
 
@@ -0,0 +1,94 @@
+package com.efedorchenko.gptbot.utils.logging;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Заранее подготовленный план логирования одного метода, помеченного {@link Log}
+ * <p>
+ * Все, что не меняется от вызова к вызову - логгер, уровень, набор логируемых параметров - вычисляется один раз
+ * при первом вызове метода. На каждом следующем вызове остается только проверить включенность уровня и
+ * скопировать ссылки на логируемые параметры
+ *
+ * @param logger        логгер с именем {@code <класс>.<метод>}
+ * @param level         уровень логирования параметров и результата
+ * @param included      {@code included[i] == true}, если {@code i}-й параметр подлежит логированию
+ * @param includedCount количество логируемых параметров
+ * @param logResult     нужно ли логировать возвращаемое значение, см. {@link Log#result()}
+ */
+public record LogPlan(Logger logger, Level level, boolean[] included, int includedCount, boolean logResult) {
+
+    /**
+     * Строит план по аннотации метода. Аннотация читается через {@link AnnotatedElementUtils}, поэтому
+     * {@link Log#value()} и {@link Log#level()} взаимозаменяемы, как и объявлено в аннотации
+     *
+     * @throws IndexOutOfBoundsException если в {@link Log#exclude()} указан индекс несуществующего параметра
+     */
+    public static LogPlan of(Method method) {
+
+        Log log = findLog(method);
+        boolean[] included = new boolean[method.getParameterCount()];
+        Arrays.fill(included, true);
+        for (int index : log.exclude()) {
+            if (index < 0 || index >= included.length) {
+                throw new IndexOutOfBoundsException("@Log excludes parameter %d of %s".formatted(index, method));
+            }
+            included[index] = false;
+        }
+        int includedCount = 0;
+        for (boolean isIncluded : included) {
+            includedCount += isIncluded ? 1 : 0;
+        }
+
+        return new LogPlan(loggerOf(method), log.level(), included, includedCount, log.result());
+    }
+
+    /**
+     * Строит план, который не логирует параметры метода. Используется вместо {@link LogPlan#of(Method)}, если
+     * аннотация метода некорректна, чтобы ошибка в ней не ломала сам метод
+     */
+    public static LogPlan withoutParameters(Method method) {
+        Log log = findLog(method);
+        return new LogPlan(loggerOf(method), log.level(), new boolean[method.getParameterCount()], 0, log.result());
+    }
+
+    private static Log findLog(Method method) {
+        Log log = AnnotatedElementUtils.findMergedAnnotation(method, Log.class);
+        if (log == null) {
+            throw new IllegalArgumentException("Method " + method + " is not annotated with @Log");
+        }
+        return log;
+    }
+
+    private static Logger loggerOf(Method method) {
+        return LoggerFactory.getLogger(method.getDeclaringClass().getName() + "." + method.getName());
+    }
+
+    public boolean isEnabled() {
+        return logger.isEnabledForLevel(level);
+    }
+
+    /**
+     * @return ссылки на логируемые параметры или {@code null}, если логировать нечего
+     */
+    @Nullable
+    public Object[] capture(Object[] args) {
+        if (includedCount == 0) {
+            return null;
+        }
+        Object[] captured = new Object[includedCount];
+        for (int i = 0, j = 0; i < included.length; i++) {
+            if (included[i]) {
+                captured[j++] = args[i];
+            }
+        }
+        return captured;
+    }
+
+}
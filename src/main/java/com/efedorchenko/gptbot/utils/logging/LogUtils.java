@@ -1,26 +1,29 @@
 package com.efedorchenko.gptbot.utils.logging;
 
 import com.efedorchenko.gptbot.aop.MethodLogAspect;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
+import org.slf4j.MDC;
 import org.slf4j.Marker;
 import org.slf4j.MarkerFactory;
 import org.slf4j.event.Level;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 
 @Slf4j
@@ -47,7 +50,8 @@ public class LogUtils {
     private static final String EX = "!- [{}]";
 
     //     Spring java beans or other fields
-    private static final String BASE64_REGEX = "([A-Za-z0-9+/]{1000,})(=*)";
+    private static final int MAX_ARRAY_ELEMENTS = 2;
+    private static final int DROPPED_REPORT_PERIOD = 1000;
 
 
     private final ObjectMapper objectMapper;
@@ -55,47 +59,100 @@ public class LogUtils {
     @Value("${logging.max-mess-length}")
     private int maxLength;
 
+    @Value("${logging.async-queue-capacity}")
+    private int asyncQueueCapacity;
+
+    private TruncatingJsonFormatter formatter;
+    private BlockingQueue<MethodLogRecord> logQueue;
+    private Thread writer;
+    private final AtomicLong droppedRecords = new AtomicLong();
+
     /**
-     * Метод для универсального асинхронного логирования срезов методов
+     * Передает вызов метода, срезанного в {@link MethodLogAspect}, на асинхронное логирование
+     * <p>
+     * Логированию подлежат входные параметры и возвращаемое значение, а так же исключение, если оно возникло в ходе
+     * работы метода. Детализация логирования настраивается для каждого метода отдельно, см. аннотацию {@link Log}.
+     * Если возвращаемое значение - экземпляр {@link CompletableFuture}, то логируется его результат (или
+     * исключение) после завершения. Метод не адаптирован к оберткам объектов реактивного стека ({@code Mono},
+     * {@code Flux})
      * <p>
-     * Метод логирует входные параметры и результаты методов, срезанных в {@link MethodLogAspect}. Логированию
-     * подлежат как входные параметры, так и возвращаемые значения, а так же исключения, если они возникли в ходе
-     * работы метода. Детализация логирования настраивается для каждого метода отдельно. См. аннотацию {@link Log}.
-     * Метод адаптирован к {@link CompletableFuture} и логирует только результат (или исключение)<br>
-     * Метод не адаптирован к оберткам объектов реактивного стека ({@code Mono}, {@code Flux})
+     * Сериализация и запись происходят в единственном потоке-писателе, вызывающий поток только ставит запись в
+     * ограниченную очередь ({@code logging.async-queue-capacity}) и никогда не блокируется. Если очередь
+     * переполнена, запись отбрасывается
      *
-     * @param paramsForLogFuture список параметров метода (их значений). Параметры, исключенные из логирования,
-     *                           должны быть уже отсеяны. Перед логированием результат будет получен безопасно
-     * @param result             значение, возвращенное методом (или экземпляр {@link Throwable}). Возвращаемое значение будет
-     *                           залогировано в соответствии с флагом {@link Log#result()}. {@link Throwable} будет залогирован
-     *                           в любом случае. Если возвращаемое значение представляет собой экземпляр {@link CompletableFuture},
-     *                           то перед логированием он будет безопасно получен
-     * @param targetlogger       целевой логгер, с помощью которого будет произведено логирование
-     * @param log                настройки, в соответствии с которыми произойдет логирование
+     * @param plan   план логирования метода
+     * @param params логируемые параметры, уже отобранные планом, или {@code null}, если логировать их не нужно
+     * @param result значение, возвращенное методом, или выброшенный им {@link Throwable}
      */
-    @Async("executorServiceOfVirtual")
-    public void doLogMethodAsyncForSomeone(@Nullable CompletableFuture<List<Object>> paramsForLogFuture,
-                                           Object result,
-                                           Logger targetlogger,
-                                           Log log) {
+    public void logMethodAsync(LogPlan plan, @Nullable Object[] params, Object result) {
+
+        Map<String, String> mdcContext = MDC.getCopyOfContextMap();
+        if (result instanceof CompletableFuture<?> resultFuture) {
+            enqueue(new MethodLogRecord(plan, params, null, mdcContext));
+            resultFuture.whenComplete((sucComplete, exComplete) ->
+                    enqueue(new MethodLogRecord(plan, null, exComplete != null ? exComplete : sucComplete, mdcContext)));
+        } else {
+            enqueue(new MethodLogRecord(plan, params, result, mdcContext));
+        }
+    }
 
-        BiConsumer<String, String> logger = logFunction(targetlogger, log.level());
+    @PostConstruct
+    public void startWriter() {
+        formatter = new TruncatingJsonFormatter(objectMapper, maxLength, MAX_ARRAY_ELEMENTS);
+        logQueue = new ArrayBlockingQueue<>(asyncQueueCapacity);
+        writer = Thread.ofVirtual().name("method-log-writer").start(this::runWriter);
+    }
+
+    @PreDestroy
+    public void stopWriter() {
+        writer.interrupt();
+    }
 
-        if (paramsForLogFuture != null) {
-            logger.accept(PARAMS, formatFutures(paramsForLogFuture));
+    private void enqueue(MethodLogRecord record) {
+        if (!logQueue.offer(record) && droppedRecords.getAndIncrement() % DROPPED_REPORT_PERIOD == 0) {
+            log.warn(LOGIC_MARKER, "Method log queue is full, records are dropped. Dropped so far: {}", droppedRecords.get());
+        }
+    }
+
+    private void runWriter() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                write(logQueue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException ex) {
+                log.error(LOGIC_MARKER, "Cannot write method log record. Ex: ", ex);
+            }
+        }
+        List<MethodLogRecord> remaining = new ArrayList<>();
+        logQueue.drainTo(remaining);
+        remaining.forEach(this::write);
+    }
+
+    private void write(MethodLogRecord record) {
+
+        if (record.mdcContext() != null) {
+            MDC.setContextMap(record.mdcContext());
+        } else {
+            MDC.clear();
+        }
+        LogPlan plan = record.plan();
+        BiConsumer<String, String> logger = logFunction(plan.logger(), plan.level());
+
+        if (record.params() != null) {
+            String[] strings = new String[record.params().length];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = format(record.params()[i]);
+            }
+            logger.accept(PARAMS, String.join(", ", strings));
         }
-        switch (result) {
+        switch (record.result()) {
+            case null -> {
+            }
             case Throwable throwable -> logger.accept(EX, throwable.toString());
-            case CompletableFuture<?> resultFuture -> resultFuture.whenComplete((sucComplete, exComplete) -> {
-                if (exComplete != null) {
-                    logger.accept(EX, exComplete.toString());
-                } else if (log.result()) {
-                    logger.accept(RETURN, format(sucComplete));
-                }
-            });
             default -> {
-                if (log.result()) {
-                    logger.accept(RETURN, format(result));
+                if (plan.logResult()) {
+                    logger.accept(RETURN, format(record.result()));
                 }
             }
         }
@@ -111,58 +168,35 @@ public class LogUtils {
         };
     }
 
+    /**
+     * Сериализует объект в json для лога за один проход, см. {@link TruncatingJsonFormatter}: от массивов
+     * остаются последние элементы, длинные base64-строки заменяются пометкой, а от результата длиннее
+     * {@code logging.max-mess-length} остается его конец. Строка, не являющаяся json, логируется как есть,
+     * с тем же ограничением длины
+     */
     public String format(Object object) {
 
         try {
-            String string = (object instanceof String ? (String) object : objectMapper.writeValueAsString(object))
-                    .replaceAll("\\n", "")
-                    .replaceAll(BASE64_REGEX, "base64 encoding");
+            return formatter.format(object);
 
-            String result = truncate(objectMapper.readTree(string), 2).toString();
-            return result.length() > maxLength
-                    ? "..>" + result.substring(result.length() - maxLength)
-                    : result;
+        } catch (JsonProcessingException ex) {
+            String string = String.valueOf(object).replace("\n", "");
+            return string.length() > maxLength
+                    ? "..>" + string.substring(string.length() - maxLength)
+                    : string;
 
         } catch (IOException ex) {
-            // TODO 08.09.2024 14:49: разобраться почему спотыкается на ссылках
-            return "impossible to deserialize <" + object + ">";
-        }
-    }
-
-    private String formatFutures(CompletableFuture<List<Object>> runningFuture) {
-        try {
-            List<Object> objects = runningFuture.get();
-            String[] strings = new String[objects.size()];
-
-            for (int i = 0; i < objects.size(); i++) {
-                strings[i] = format(objects.get(i));
-            }
-            return String.join(", ", strings);
-
-        } catch (InterruptedException | ExecutionException ex) {
-            log.error(LOGIC_MARKER, "Cannot log param as aspect. ParamsFuture are filed. Ex: {}", ex.getMessage());
-            return "Cannot log param as aspect. ParamsFuture are filed. Ex: " + ex.getMessage();
+            return "impossible to serialize <" + object.getClass().getName() + ">";
         }
     }
 
-    private JsonNode truncate(JsonNode node, int maxElements) {
-        return switch (node) {
-            case ArrayNode arrayNode when arrayNode.size() > maxElements -> {
-                ArrayNode truncatedArray = JsonNodeFactory.instance.arrayNode();
-                JsonNode firstElement =
-                        JsonNodeFactory.instance.textNode("<.. " + (arrayNode.size() - maxElements) + " hide ..>");
-                truncatedArray.add(firstElement);
-                for (int i = arrayNode.size() - maxElements; i < arrayNode.size(); i++) {
-                    truncatedArray.add(arrayNode.get(i));
-                }
-                yield truncatedArray;
-            }
-            case ObjectNode objectNode -> {
-                ObjectNode result = JsonNodeFactory.instance.objectNode();
-                objectNode.fields().forEachRemaining(f -> result.set(f.getKey(), truncate(f.getValue(), maxElements)));
-                yield result;
-            }
-            default -> node;   // or case "ArrayNode arrayNode arrayNode.size() <= maxElements"
-        };
+    /**
+     * Запись о вызове метода, ожидающая логирования
+     *
+     * @param result значение, возвращенное методом, {@link Throwable} или {@code null}, если логировать
+     *               нужно только параметры
+     */
+    private record MethodLogRecord(LogPlan plan, @Nullable Object[] params, @Nullable Object result,
+                                   @Nullable Map<String, String> mdcContext) {
     }
 }
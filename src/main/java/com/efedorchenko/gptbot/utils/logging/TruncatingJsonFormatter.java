@@ -0,0 +1,522 @@
+package com.efedorchenko.gptbot.utils.logging;
+
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.util.JsonGeneratorDelegate;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Однопроходный форматтер объектов для логов
+ * <p>
+ * Объект сериализуется сразу в фильтрующий {@link JsonGenerator}, который пишет компактную json-строку и по пути
+ * сокращает ее, не создавая промежуточного представления объекта:
+ * <ul>
+ * <li>от каждого массива остаются только {@code maxArrayElements} последних элементов, перед которыми
+ * пишется строка {@code <.. N hide ..>}. Для этого в памяти держится не больше {@code maxArrayElements + 1}
+ * уже сокращенных элементов на каждом уровне вложенности</li>
+ * <li>от строк длиннее {@code maxLength} остаются только последние {@code maxLength} символов, перед которыми
+ * пишется {@code <.. N chars hide ..>}</li>
+ * <li>фрагменты base64 длиннее {@link TruncatingJsonFormatter#BASE64_MIN_LENGTH} символов в строках, как и
+ * бинарные поля такого размера, заменяются на {@code base64 encoding}</li>
+ * <li>из результата сохраняются только последние {@code maxLength} символов, так что размер результата
+ * ограничен, даже если исходный объект занимает мегабайты</li>
+ * </ul>
+ * Строка считается уже сериализованным json и переписывается через тот же генератор потоково, из буфера парсера
+ */
+final class TruncatingJsonFormatter {
+
+    static final int BASE64_MIN_LENGTH = 1000;
+    private static final String BASE64_REPLACEMENT = "base64 encoding";
+
+    private final ObjectMapper objectMapper;
+    private final int maxLength;
+    private final int maxArrayElements;
+
+    TruncatingJsonFormatter(ObjectMapper objectMapper, int maxLength, int maxArrayElements) {
+        this.objectMapper = objectMapper;
+        this.maxLength = maxLength;
+        this.maxArrayElements = maxArrayElements;
+    }
+
+    /**
+     * @param object объект для логирования. Строка считается уже сериализованным json
+     * @throws IOException если объект не удалось сериализовать или строка не является json
+     */
+    String format(Object object) throws IOException {
+
+        TailWriter tail = new TailWriter(maxLength);
+        try (TruncatingGenerator generator = new TruncatingGenerator(objectMapper.getFactory().createGenerator(tail))) {
+            if (object instanceof String string) {
+                try (JsonParser parser = objectMapper.getFactory().createParser(string)) {
+                    if (parser.nextToken() != null) {
+                        generator.copyCurrentStructure(parser);
+                    }
+                }
+            } else {
+                objectMapper.writeValue(generator, object);
+            }
+        }
+        return tail.result();
+    }
+
+    /**
+     * @return {@code text}, сокращенный до {@code maxLength} последних символов, с заменой длинных фрагментов base64
+     */
+    private String shorten(CharSequence text) {
+
+        int hiddenChars = Math.max(0, text.length() - maxLength);
+        CharSequence kept = hiddenChars > 0 ? text.subSequence(hiddenChars, text.length()) : text;
+
+        StringBuilder result = hiddenChars > 0
+                ? new StringBuilder().append("<.. ").append(hiddenChars).append(" chars hide ..>")
+                : null;
+        if (kept.length() < BASE64_MIN_LENGTH) {
+            return result == null ? kept.toString() : result.append(kept).toString();
+        }
+
+        int copiedUpTo = 0;
+        int runStart = -1;
+        for (int i = 0; i <= kept.length(); i++) {
+            if (i < kept.length() && isBase64Char(kept.charAt(i))) {
+                if (runStart < 0) {
+                    runStart = i;
+                }
+                continue;
+            }
+            if (runStart >= 0 && i - runStart >= BASE64_MIN_LENGTH) {
+                int runEnd = i;
+                while (runEnd < kept.length() && kept.charAt(runEnd) == '=') {
+                    runEnd++;
+                }
+                if (result == null) {
+                    result = new StringBuilder();
+                }
+                result.append(kept, copiedUpTo, runStart).append(BASE64_REPLACEMENT);
+                copiedUpTo = runEnd;
+                i = runEnd;
+            }
+            runStart = -1;
+        }
+
+        if (result == null) {
+            return kept.toString();
+        }
+        return result.append(kept, Math.min(copiedUpTo, kept.length()), kept.length()).toString();
+    }
+
+    private static boolean isBase64Char(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/';
+    }
+
+    /**
+     * Генератор, применяющий сокращения к каждому записываемому значению
+     * <p>
+     * Содержимое массива не пишется сразу: каждый его элемент пишется в собственный {@link TokenBuffer}, и
+     * хранятся только последние {@code maxArrayElements + 1} элементов. Массив целиком пишется в родительский
+     * генератор при закрытии, когда известно количество скрытых элементов. Для этого текущий генератор-получатель
+     * ({@link JsonGeneratorDelegate#delegate}) переключается между буферами элементов и родительским генератором.
+     * Методы копирования не делегируются, чтобы копируемые из парсера значения тоже проходили через сокращения
+     */
+    private final class TruncatingGenerator extends JsonGeneratorDelegate {
+
+        private final Deque<ArrayFrame> arrays = new ArrayDeque<>();
+
+        private TruncatingGenerator(JsonGenerator output) {
+            super(output, false);
+        }
+
+        /**
+         * Вызывается перед записью любого значения. Значение, записываемое непосредственно в массив, начинает
+         * новый элемент этого массива
+         */
+        private void beforeValue() {
+            ArrayFrame array = arrays.peek();
+            if (array != null && array.nesting == 0) {
+                array.startElement();
+            }
+        }
+
+        private void enterStructure() {
+            ArrayFrame array = arrays.peek();
+            if (array != null) {
+                array.nesting++;
+            }
+        }
+
+        private void exitStructure() {
+            ArrayFrame array = arrays.peek();
+            if (array != null) {
+                array.nesting--;
+            }
+        }
+
+        @Override
+        public void writeStartArray() throws IOException {
+            beforeValue();
+            enterStructure();
+            arrays.push(new ArrayFrame(delegate));
+        }
+
+        @Override
+        public void writeStartArray(Object forValue) throws IOException {
+            writeStartArray();
+        }
+
+        @Override
+        public void writeStartArray(Object forValue, int size) throws IOException {
+            writeStartArray();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void writeStartArray(int size) throws IOException {
+            writeStartArray();
+        }
+
+        @Override
+        public void writeEndArray() throws IOException {
+            ArrayFrame array = arrays.pop();
+            array.finishElement();
+            delegate = array.parent;
+            exitStructure();
+
+            delegate.writeStartArray();
+            if (array.hidden > 0) {
+                delegate.writeString("<.. " + array.hidden + " hide ..>");
+            }
+            for (TokenBuffer element : array.elements) {
+                try (JsonParser elementParser = element.asParser(objectMapper)) {
+                    elementParser.nextToken();
+                    delegate.copyCurrentStructure(elementParser);
+                }
+            }
+            delegate.writeEndArray();
+        }
+
+        @Override
+        public void writeArray(int[] array, int offset, int length) throws IOException {
+            writeStartArray();
+            for (int i = offset; i < offset + length; i++) {
+                writeNumber(array[i]);
+            }
+            writeEndArray();
+        }
+
+        @Override
+        public void writeArray(long[] array, int offset, int length) throws IOException {
+            writeStartArray();
+            for (int i = offset; i < offset + length; i++) {
+                writeNumber(array[i]);
+            }
+            writeEndArray();
+        }
+
+        @Override
+        public void writeArray(double[] array, int offset, int length) throws IOException {
+            writeStartArray();
+            for (int i = offset; i < offset + length; i++) {
+                writeNumber(array[i]);
+            }
+            writeEndArray();
+        }
+
+        @Override
+        public void writeArray(String[] array, int offset, int length) throws IOException {
+            writeStartArray();
+            for (int i = offset; i < offset + length; i++) {
+                writeString(array[i]);
+            }
+            writeEndArray();
+        }
+
+        @Override
+        public void writeStartObject() throws IOException {
+            beforeValue();
+            enterStructure();
+            super.writeStartObject();
+        }
+
+        @Override
+        public void writeStartObject(Object forValue) throws IOException {
+            beforeValue();
+            enterStructure();
+            super.writeStartObject(forValue);
+        }
+
+        @Override
+        public void writeStartObject(Object forValue, int size) throws IOException {
+            beforeValue();
+            enterStructure();
+            super.writeStartObject(forValue, size);
+        }
+
+        @Override
+        public void writeEndObject() throws IOException {
+            super.writeEndObject();
+            exitStructure();
+        }
+
+        @Override
+        public void writeString(String text) throws IOException {
+            if (text == null) {
+                writeNull();
+                return;
+            }
+            beforeValue();
+            super.writeString(shorten(text));
+        }
+
+        @Override
+        public void writeString(char[] text, int offset, int length) throws IOException {
+            beforeValue();
+            super.writeString(shorten(CharBuffer.wrap(text, offset, length)));
+        }
+
+        @Override
+        public void writeString(SerializableString text) throws IOException {
+            writeString(text.getValue());
+        }
+
+        @Override
+        public void writeString(Reader reader, int length) throws IOException {
+            beforeValue();
+            super.writeString(reader, length);
+        }
+
+        @Override
+        public void writeRawUTF8String(byte[] text, int offset, int length) throws IOException {
+            beforeValue();
+            super.writeRawUTF8String(text, offset, length);
+        }
+
+        @Override
+        public void writeUTF8String(byte[] text, int offset, int length) throws IOException {
+            beforeValue();
+            super.writeUTF8String(text, offset, length);
+        }
+
+        @Override
+        public void writeBinary(Base64Variant b64variant, byte[] data, int offset, int length) throws IOException {
+            beforeValue();
+            if (length * 4L / 3 >= BASE64_MIN_LENGTH) {
+                super.writeString(BASE64_REPLACEMENT);
+            } else {
+                super.writeBinary(b64variant, data, offset, length);
+            }
+        }
+
+        @Override
+        public void writeBinary(byte[] data, int offset, int length) throws IOException {
+            writeBinary(Base64Variants.getDefaultVariant(), data, offset, length);
+        }
+
+        @Override
+        public void writeBinary(byte[] data) throws IOException {
+            writeBinary(data, 0, data.length);
+        }
+
+        @Override
+        public int writeBinary(Base64Variant b64variant, InputStream data, int dataLength) throws IOException {
+            beforeValue();
+            super.writeString(BASE64_REPLACEMENT);
+            return dataLength;
+        }
+
+        @Override
+        public int writeBinary(InputStream data, int dataLength) throws IOException {
+            return writeBinary(null, data, dataLength);
+        }
+
+        @Override
+        public void writeNumber(short v) throws IOException {
+            beforeValue();
+            super.writeNumber(v);
+        }
+
+        @Override
+        public void writeNumber(int v) throws IOException {
+            beforeValue();
+            super.writeNumber(v);
+        }
+
+        @Override
+        public void writeNumber(long v) throws IOException {
+            beforeValue();
+            super.writeNumber(v);
+        }
+
+        @Override
+        public void writeNumber(BigInteger v) throws IOException {
+            beforeValue();
+            super.writeNumber(v);
+        }
+
+        @Override
+        public void writeNumber(double v) throws IOException {
+            beforeValue();
+            super.writeNumber(v);
+        }
+
+        @Override
+        public void writeNumber(float v) throws IOException {
+            beforeValue();
+            super.writeNumber(v);
+        }
+
+        @Override
+        public void writeNumber(BigDecimal v) throws IOException {
+            beforeValue();
+            super.writeNumber(v);
+        }
+
+        @Override
+        public void writeNumber(String encodedValue) throws IOException {
+            beforeValue();
+            super.writeNumber(encodedValue);
+        }
+
+        @Override
+        public void writeNumber(char[] encodedValueBuffer, int offset, int length) throws IOException {
+            beforeValue();
+            super.writeNumber(encodedValueBuffer, offset, length);
+        }
+
+        @Override
+        public void writeBoolean(boolean state) throws IOException {
+            beforeValue();
+            super.writeBoolean(state);
+        }
+
+        @Override
+        public void writeNull() throws IOException {
+            beforeValue();
+            super.writeNull();
+        }
+
+        @Override
+        public void writeRawValue(String text) throws IOException {
+            beforeValue();
+            super.writeRawValue(text);
+        }
+
+        @Override
+        public void writeRawValue(String text, int offset, int length) throws IOException {
+            beforeValue();
+            super.writeRawValue(text, offset, length);
+        }
+
+        @Override
+        public void writeRawValue(char[] text, int offset, int length) throws IOException {
+            beforeValue();
+            super.writeRawValue(text, offset, length);
+        }
+
+        @Override
+        public void writeRawValue(SerializableString text) throws IOException {
+            beforeValue();
+            super.writeRawValue(text);
+        }
+
+        @Override
+        public void writeEmbeddedObject(Object object) throws IOException {
+            beforeValue();
+            super.writeEmbeddedObject(object);
+        }
+
+        /**
+         * Массив, элементы которого сейчас пишутся
+         */
+        private final class ArrayFrame {
+
+            private final JsonGenerator parent;
+            private final ArrayDeque<TokenBuffer> elements = new ArrayDeque<>(maxArrayElements + 1);
+            private TokenBuffer current;
+            private int hidden;
+
+            /** Глубина вложенности объектов и массивов внутри текущего элемента */
+            private int nesting;
+
+            private ArrayFrame(JsonGenerator parent) {
+                this.parent = parent;
+            }
+
+            private void startElement() {
+                finishElement();
+                current = new TokenBuffer(objectMapper, false);
+                delegate = current;
+            }
+
+            private void finishElement() {
+                if (current == null) {
+                    return;
+                }
+                elements.addLast(current);
+                if (elements.size() > maxArrayElements) {
+                    elements.pollFirst();
+                    hidden++;
+                }
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * {@link Writer}, хранящий только последние {@code capacity} символов в кольцевом буфере
+     */
+    private static final class TailWriter extends Writer {
+
+        private final char[] ring;
+        private long written;
+
+        private TailWriter(int capacity) {
+            this.ring = new char[capacity];
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            if (ring.length == 0) {
+                written += length;
+                return;
+            }
+            if (length > ring.length) {
+                offset += length - ring.length;
+                written += length - ring.length;
+                length = ring.length;
+            }
+            for (int i = 0; i < length; i++) {
+                ring[(int) (written++ % ring.length)] = chars[offset + i];
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private String result() {
+            if (written <= ring.length) {
+                return new String(ring, 0, (int) written);
+            }
+            int start = (int) (written % ring.length);
+            return "..>" + new String(ring, start, ring.length - start) + new String(ring, 0, start);
+        }
+    }
+
+}
@@ -2,13 +2,22 @@ package com.efedorchenko.gptbot.yandex.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
 import jakarta.annotation.Nullable;
 import jakarta.validation.constraints.NotNull;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.ToString;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 
 /**
  * Класс, представляющий ответ модели {@code YandexART}, который она предоставляет СРАЗУ после получения запроса,
@@ -77,18 +86,82 @@ public class ArtAnswer implements Serializable {
     }
 
     /**
-     * Объект с результатом успешного процесса генерации, содержащий результат, закодированный в {@code Base64}
+     * Удаляет временный файл с изображением, если он был создан при чтении ответа. Вызывается на каждом пути,
+     * на котором изображение не отправляется юзеру
+     */
+    public void deleteImage() throws IOException {
+        if (response != null && response.image != null) {
+            Files.deleteIfExists(response.image);
+        }
+    }
+
+    /**
+     * Объект с результатом успешного процесса генерации. Изображение приходит в кодировке {@code Base64}
+     * и при чтении ответа декодируется во временный файл, см. {@link ImageFileDeserializer}
      */
     @Getter
     @ToString
     @AllArgsConstructor
+    @JsonDeserialize(using = ImageFileDeserializer.class)
     public static class ArtCompleteResponse {
 
-        /** Сам результат операции - изображение в кодировке {@code Base64} */
-        private final String image;
+        /** Сам результат операции - временный файл с изображением. Файл удаляет тот, кто отправляет изображение */
+        private final Path image;
 
         /** Номер модели, сгенерировавшей это изображение */
         private final String modelVersion;
 
     }
+
+    /**
+     * Читает {@link ArtCompleteResponse} потоково: изображение декодируется из {@code Base64} прямо из входного
+     * буфера парсера во временный файл по мере чтения ответа. Ни строка {@code Base64}, ни декодированное
+     * изображение целиком в памяти не хранятся, поэтому память на одно готовое изображение не зависит от его размера
+     * <p>
+     * Если при чтении передан атрибут {@link ImageFileDeserializer#CREATED_FILES_ATTRIBUTE} со списком, созданный
+     * файл добавляется в него, чтобы вызывающий код мог удалить файл, если остальной ответ прочитать не удалось
+     */
+    public static class ImageFileDeserializer extends StdDeserializer<ArtCompleteResponse> {
+
+        public static final String IMAGE_FILE_PREFIX = "yandex-art-";
+        public static final String IMAGE_FILE_SUFFIX = ".jpeg";
+        public static final String CREATED_FILES_ATTRIBUTE = "yandex-art-created-files";
+
+        public ImageFileDeserializer() {
+            super(ArtCompleteResponse.class);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public ArtCompleteResponse deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+
+            Path image = null;
+            String modelVersion = null;
+            try {
+                String field = parser.isExpectedStartObjectToken() ? parser.nextFieldName() : parser.currentName();
+                for (; field != null; field = parser.nextFieldName()) {
+                    parser.nextToken();
+                    switch (field) {
+                        case "image" -> {
+                            image = Files.createTempFile(IMAGE_FILE_PREFIX, IMAGE_FILE_SUFFIX);
+                            if (context.getAttribute(CREATED_FILES_ATTRIBUTE) instanceof List<?> createdFiles) {
+                                ((List<Path>) createdFiles).add(image);
+                            }
+                            try (OutputStream imageFile = Files.newOutputStream(image)) {
+                                parser.readBinaryValue(imageFile);
+                            }
+                        }
+                        case "modelVersion" -> modelVersion = parser.getValueAsString();
+                        default -> parser.skipChildren();
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                if (image != null) {
+                    Files.deleteIfExists(image);
+                }
+                throw ex;
+            }
+            return new ArtCompleteResponse(image, modelVersion);
+        }
+    }
 }
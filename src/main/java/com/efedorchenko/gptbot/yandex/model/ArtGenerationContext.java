@@ -0,0 +1,54 @@
+package com.efedorchenko.gptbot.yandex.model;
+
+import jakarta.annotation.Nullable;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Контекст одной операции генерации изображения моделью {@code YandexART}. Создается на каждый принятый
+ * моделью запрос и живет до завершения операции, поэтому параллельные генерации разных юзеров не делят
+ * между собой ни сообщение о прогрессе, ни значение этого прогресса
+ */
+@Getter
+@ToString
+public class ArtGenerationContext {
+
+    /** Идентификатор операции генерации, полученный от модели */
+    private final String operationId;
+
+    /** Идентификатор чата, в который нужно отправить результат */
+    private final String chatId;
+
+    /**
+     * Идентификатор сообщения {@code Генерация завершена на X%}, которое держит юзера в курсе процесса генерации.
+     * Равен {@code null}, если это сообщение не удалось отправить
+     */
+    @Nullable
+    private final Integer progressMessageId;
+
+    /** Момент, когда модель приняла запрос на генерацию */
+    private final Instant startedAt;
+
+    /**
+     * Счетчик процентов. На самом деле не имеет связи с процессом генерации, а просто постепенно увеличивается
+     * с все замедляющейся скоростью, никогда не достигая {@code 100%}. Значение в начале генерации - {@code 1%}
+     */
+    @Setter
+    private volatile double percentReady = 1;
+
+    public ArtGenerationContext(String operationId, String chatId, @Nullable Integer progressMessageId) {
+        this.operationId = operationId;
+        this.chatId = chatId;
+        this.progressMessageId = progressMessageId;
+        this.startedAt = Instant.now();
+    }
+
+    public Duration elapsed() {
+        return Duration.between(startedAt, Instant.now());
+    }
+
+}
@@ -33,6 +33,13 @@ public class GptAnswer implements Serializable {
     @Nullable
     private final HttpStatus errorHttpStatus;
 
+    /**
+     * Поле не предусмотрено моделью Яндекса. Если ответ был получен в потоковом режиме и уже отправлен
+     * юзеру по частям, в этом поле будет идентификатор отправленного сообщения с окончательным текстом ответа
+     */
+    @Nullable
+    private final Integer streamedMessageId;
+
     /**
      * Целевой класс ответа модели, содержащий все информацию об ответе
      */
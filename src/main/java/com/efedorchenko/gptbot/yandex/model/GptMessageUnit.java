@@ -1,5 +1,6 @@
 package com.efedorchenko.gptbot.yandex.model;
 
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.ToString;
@@ -11,15 +12,47 @@ import java.io.Serializable;
  */
 @Getter
 @ToString
-@AllArgsConstructor
 public class GptMessageUnit implements Serializable {
 
+    /** Среднее количество символов текста на один токен модели, используется для грубой оценки */
+    private static final int CHARS_PER_TOKEN = 3;
+
+    /** Токены, которые модель тратит на служебную разметку каждого сообщения, независимо от его длины */
+    private static final int MESSAGE_OVERHEAD_TOKENS = 4;
+
     /** Роль отправителя данного сообщения. Чтоб модель понимала, что отвечала она, а что юзер */
     private final String role;
 
     /** Текстовое содержимое сообщения */
     private final String text;
 
+    /**
+     * Запомненный результат {@link GptMessageUnit#baseTokenEstimate()}. Не сериализуется, {@code 0} - еще
+     * не вычислен. Гонка при вычислении безопасна: все потоки вычисляют одно и то же значение
+     */
+    @ToString.Exclude
+    @Getter(AccessLevel.NONE)
+    private transient int baseTokenEstimate;
+
+    public GptMessageUnit(String role, String text) {
+        this.role = role;
+        this.text = text;
+    }
+
+    /**
+     * Грубая, не откалиброванная оценка количества токенов, которые займет это сообщение в запросе к модели.
+     * Вычисляется один раз на объект, поэтому для сообщений из кеша истории повторно не считается
+     */
+    public int baseTokenEstimate() {
+        int estimate = baseTokenEstimate;
+        if (estimate == 0) {
+            int length = text == null ? 0 : text.length();
+            estimate = MESSAGE_OVERHEAD_TOKENS + (length + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+            baseTokenEstimate = estimate;
+        }
+        return estimate;
+    }
+
     /**
      * Идентификаторы отправителей сообщений. Передаются в объекте {@link GptMessageUnit}. Чтоб модель видела
      * что спрашивал сам юзер и что отвечала она - контекст и отталкивалась от него в будущих ответах<br>
@@ -1,5 +1,6 @@
 package com.efedorchenko.gptbot.yandex.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.ToString;
@@ -34,6 +35,20 @@ public class GptRequestBody implements Serializable {
      */
     private final List<GptMessageUnit> messages;
 
+    /**
+     * Идентификатор чата, для которого сгенерирован запрос. Не отправляется модели, нужен для того, чтобы
+     * при потоковой генерации ({@link CompletionOptions#stream}) отправлять юзеру текст по мере его поступления
+     */
+    @JsonIgnore
+    private final transient String chatId;
+
+    /**
+     * Сумма грубых оценок {@link GptMessageUnit#baseTokenEstimate()} всех сообщений запроса. Не отправляется
+     * модели, сравнивается с фактическим количеством входных токенов из ответа для калибровки оценки
+     */
+    @JsonIgnore
+    private final transient int baseTokenEstimate;
+
     /**
      * Технические настройки желаемого ответа
      */
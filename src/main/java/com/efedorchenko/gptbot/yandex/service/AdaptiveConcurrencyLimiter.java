@@ -0,0 +1,149 @@
+package com.efedorchenko.gptbot.yandex.service;
+
+import com.efedorchenko.gptbot.configuration.properties.GptLimiterProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Адаптивный ограничитель одновременных запросов к модели {@code YandexGPT} по алгоритму AIMD
+ * (additive increase / multiplicative decrease)
+ * <p>
+ * Пока модель начинает отвечать (присылает заголовки ответа) быстрее {@code gpt-limiter.latency-threshold-millis}
+ * и без {@code 429 Too Many Requests},
+ * лимит увеличивается примерно на единицу за каждый "круг" запросов, но только если текущий лимит действительно
+ * используется. При первых признаках перегрузки лимит умножается на {@code gpt-limiter.backoff-ratio}. Так лимит
+ * сам находит квоту Яндекса: не простаивает ниже нее и не вызывает лавину ответов {@code 429}
+ * <p>
+ * Запросы сверх лимита ждут в очереди ограниченного размера не дольше {@code gpt-limiter.max-wait-millis},
+ * после чего отклоняются. Текущий лимит, число выполняющихся и ожидающих запросов и количество отклоненных
+ * запросов доступны как метрики {@code yandex.gpt.limiter.*}
+ */
+@Slf4j
+@Component
+public class AdaptiveConcurrencyLimiter {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitReleased = lock.newCondition();
+
+    private final GptLimiterProperties properties;
+    private final Counter rejectedCounter;
+
+    private double limit;
+    private int inFlight;
+    private int waiting;
+
+    public AdaptiveConcurrencyLimiter(GptLimiterProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.limit = properties.getInitialLimit();
+
+        Gauge.builder("yandex.gpt.limiter.limit", this, AdaptiveConcurrencyLimiter::getLimit).register(meterRegistry);
+        Gauge.builder("yandex.gpt.limiter.in-flight", this, AdaptiveConcurrencyLimiter::getInFlight).register(meterRegistry);
+        Gauge.builder("yandex.gpt.limiter.queue", this, AdaptiveConcurrencyLimiter::getWaiting).register(meterRegistry);
+        this.rejectedCounter = Counter.builder("yandex.gpt.limiter.rejected").register(meterRegistry);
+    }
+
+    /**
+     * Занимает место для одного запроса, при необходимости ожидая его освобождения. Каждый успешный вызов
+     * должен завершаться ровно одним вызовом {@link AdaptiveConcurrencyLimiter#release(boolean, long)}
+     *
+     * @return {@code true}, если место получено, {@code false} - если запрос отклонен из-за переполнения
+     * очереди или истечения времени ожидания
+     * @throws InterruptedException если поток был прерван во время ожидания. Место в этом случае не занимается
+     */
+    public boolean acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return true;
+            }
+            if (waiting >= properties.getMaxQueueSize()) {
+                rejectedCounter.increment();
+                return false;
+            }
+
+            waiting++;
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(properties.getMaxWaitMillis());
+                while (inFlight >= (int) limit) {
+                    if (nanos <= 0) {
+                        rejectedCounter.increment();
+                        return false;
+                    }
+                    nanos = permitReleased.awaitNanos(nanos);
+                }
+                inFlight++;
+                return true;
+            } finally {
+                waiting--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Освобождает место, занятое {@link AdaptiveConcurrencyLimiter#acquire()}, и корректирует лимит
+     *
+     * @param overloaded    {@code true}, если модель явно сообщила о перегрузке (ответ {@code 429})
+     * @param latencyNanos  время до получения заголовков ответа модели. Длительность чтения потокового ответа
+     *                      зависит от длины ответа, а не от загрузки модели, поэтому не учитывается
+     */
+    public void release(boolean overloaded, long latencyNanos) {
+        lock.lock();
+        try {
+            boolean wasSaturated = inFlight >= (int) limit;
+            inFlight--;
+
+            if (overloaded || latencyNanos > TimeUnit.MILLISECONDS.toNanos(properties.getLatencyThresholdMillis())) {
+                double decreased = Math.max(properties.getMinLimit(), limit * properties.getBackoffRatio());
+                if ((int) decreased < (int) limit) {
+                    log.debug("YandexGPT concurrency limit decreased to {} (overloaded: {})", (int) decreased, overloaded);
+                }
+                limit = decreased;
+
+            } else if (wasSaturated) {
+                limit = Math.min(properties.getMaxLimit(), limit + 1 / limit);
+            }
+
+            permitReleased.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+package com.efedorchenko.gptbot.yandex.service;
+
+import com.efedorchenko.gptbot.exception.GptTelegramBotException;
+import com.efedorchenko.gptbot.exception.RetryAttemptNotReadyException;
+import com.efedorchenko.gptbot.yandex.model.ArtAnswer;
+
+/**
+ * Обработчик событий одной операции генерации изображения, зарегистрированной в {@link ArtOperationPoller}.
+ * Все методы вызываются асинхронно, вне потока, который зарегистрировал операцию, с восстановленным
+ * контекстом {@code MDC} этого потока. Для одной операции ровно один раз будет вызван либо
+ * {@link ArtOperationCallback#onComplete(ArtAnswer)}, либо {@link ArtOperationCallback#onFailure(Throwable)}
+ */
+public interface ArtOperationCallback {
+
+    /**
+     * Вызывается после каждого опроса модели, на котором изображение еще не было готово
+     *
+     * @param operationId идентификатор операции генерации
+     */
+    void onPending(String operationId);
+
+    /**
+     * Вызывается один раз, когда модель завершила операцию (успешно или с ошибкой генерации)
+     *
+     * @param completedAnswer ответ модели с флагом {@link ArtAnswer#isDone()}, равным {@code true}
+     */
+    void onComplete(ArtAnswer completedAnswer);
+
+    /**
+     * Вызывается один раз, если операцию не удалось завершить. Исключение {@link RetryAttemptNotReadyException}
+     * означает, что изображение не было готово за отведенное количество опросов, а исключение
+     * {@link GptTelegramBotException} - что не удалось выполнить запрос или прочитать ответ
+     *
+     * @param ex причина неудачи
+     */
+    void onFailure(Throwable ex);
+
+}
@@ -0,0 +1,212 @@
+package com.efedorchenko.gptbot.yandex.service;
+
+import com.efedorchenko.gptbot.configuration.RetryTemplateConfiguration;
+import com.efedorchenko.gptbot.configuration.properties.YandexProperties;
+import com.efedorchenko.gptbot.exception.GptTelegramBotException;
+import com.efedorchenko.gptbot.exception.RetryAttemptNotReadyException;
+import com.efedorchenko.gptbot.yandex.model.ArtAnswer;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.MDC;
+import org.springframework.http.HttpHeaders;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.efedorchenko.gptbot.utils.logging.LogUtils.LOGIC_MARKER;
+
+/**
+ * Движок опроса асинхронных операций модели {@code YandexART}
+ * <p>
+ * Вместо того чтобы держать поток-обработчик запроса на все время генерации изображения, операция
+ * регистрируется здесь через {@link ArtOperationPoller#submit(String, ArtOperationCallback)} и помещается в общую
+ * очередь отложенных задач. Раз в {@code retry.poll-tick-millis} планировщик забирает из очереди все операции,
+ * время опроса которых наступило, и отправляет по ним неблокирующие http-запросы. Не готовые операции
+ * возвращаются в очередь на следующий период {@code retry.back-off-period-millis}, готовые - передаются в
+ * {@link ArtOperationCallback}. Таким образом число потоков и объем памяти не зависят от количества
+ * изображений, генерирующихся в данный момент - на каждую операцию приходится только один небольшой объект
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ArtOperationPoller {
+
+    private final DelayQueue<PendingOperation> pendingOperations = new DelayQueue<>();
+
+    private final OkHttpClient httpClient;
+    private final ObjectMapper objectMapper;
+    private final YandexProperties yandexProperties;
+    private final IamTokenManager iamTokenManager;
+    private final ExecutorService executorServiceOfVirtual;
+    private final RetryTemplateConfiguration retryTemplateConfiguration;
+
+    /**
+     * Регистрирует операцию генерации для опроса. Метод не блокирует вызывающий поток,
+     * первый опрос произойдет через {@code retry.back-off-period-millis}
+     *
+     * @param operationId идентификатор операции, полученный от модели в ответ на запрос генерации
+     * @param callback    обработчик событий этой операции
+     */
+    public void submit(String operationId, ArtOperationCallback callback) {
+        PendingOperation operation = new PendingOperation(operationId, callback, MDC.getCopyOfContextMap());
+        operation.scheduleNextPoll(retryTemplateConfiguration.getBackOffPeriodMillis());
+        pendingOperations.add(operation);
+    }
+
+    /**
+     * @return количество операций, ожидающих очередного опроса
+     */
+    public int pendingCount() {
+        return pendingOperations.size();
+    }
+
+    @Scheduled(fixedDelayString = "${retry.poll-tick-millis}")
+    public void pollDueOperations() {
+        List<PendingOperation> dueOperations = new ArrayList<>();
+        pendingOperations.drainTo(dueOperations);
+        dueOperations.forEach(this::poll);
+    }
+
+    private void poll(PendingOperation operation) {
+
+        Request request = new Request.Builder()
+                .url(yandexProperties.getArtModelCompleteUrlPattern().formatted(operation.operationId))
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + iamTokenManager.getToken())
+                .header(YandexProperties.FOLDER_ID_HEADER_NAME, yandexProperties.getFolderId())
+                .get()
+                .build();
+
+        httpClient.newCall(request).enqueue(new Callback() {
+
+            @Override
+            public void onFailure(@NotNull Call call, @NotNull IOException ioe) {
+                dispatch(operation, callback -> callback.onFailure(
+                        new GptTelegramBotException("Cannot execute call of the request or read response body", ioe)));
+            }
+
+            @Override
+            public void onResponse(@NotNull Call call, @NotNull Response response) {
+                List<Path> imageFiles = new ArrayList<>(1);
+                try (response) {
+                    handleAnswer(operation, objectMapper.readerFor(ArtAnswer.class)
+                            .withAttribute(ArtAnswer.ImageFileDeserializer.CREATED_FILES_ATTRIBUTE, imageFiles)
+                            .readValue(response.body().byteStream()));
+
+                } catch (JsonProcessingException jpe) {
+                    deleteImages(imageFiles);
+                    dispatch(operation, callback -> callback.onFailure(new GptTelegramBotException("Request was successful, but it wasn't possible to deserialize the response into an object of the \"%s\" class".formatted(ArtAnswer.class), jpe)));
+
+                } catch (IOException ioe) {
+                    deleteImages(imageFiles);
+                    dispatch(operation, callback -> callback.onFailure(
+                            new GptTelegramBotException("Cannot execute call of the request or read response body", ioe)));
+                }
+            }
+        });
+    }
+
+    /**
+     * Удаляет изображения, прочитанные из ответа, который в целом прочитать не удалось
+     */
+    private static void deleteImages(List<Path> imageFiles) {
+        for (Path image : imageFiles) {
+            try {
+                Files.deleteIfExists(image);
+            } catch (IOException ex) {
+                log.warn(LOGIC_MARKER, "Cannot delete generated image {}. Ex: {}", image, ex.getMessage());
+            }
+        }
+    }
+
+    private void handleAnswer(PendingOperation operation, ArtAnswer answer) {
+
+        if (answer != null && answer.isDone()) {
+            dispatch(operation, callback -> callback.onComplete(answer));
+            return;
+        }
+        if (answer != null) {
+            YandexArtService.deleteImage(answer);   // Изображение приходит только в завершенной операции
+        }
+
+        if (++operation.attempts >= retryTemplateConfiguration.getMaxAttempts()) {
+            dispatch(operation, callback -> callback.onFailure(
+                    new RetryAttemptNotReadyException("The picture is not ready yet")));
+            return;
+        }
+
+        operation.scheduleNextPoll(retryTemplateConfiguration.getBackOffPeriodMillis());
+        pendingOperations.add(operation);
+        dispatch(operation, callback -> callback.onPending(operation.operationId));
+    }
+
+    /**
+     * Вызывает обработчик операции в виртуальном потоке, чтобы не занимать потоки http-клиента
+     * и планировщика, с восстановленным контекстом {@link MDC} того потока, который зарегистрировал операцию
+     */
+    private void dispatch(PendingOperation operation, Consumer<ArtOperationCallback> event) {
+        executorServiceOfVirtual.execute(() -> {
+            if (operation.mdcContext != null) {
+                MDC.setContextMap(operation.mdcContext);
+            }
+            try {
+                event.accept(operation.callback);
+            } catch (RuntimeException ex) {
+                log.error(LOGIC_MARKER, "Art operation callback failed. OperationId: {}. Ex: ", operation.operationId, ex);
+            }
+        });
+    }
+
+    /**
+     * Операция генерации, ожидающая очередного опроса. Одновременно находится либо в очереди, либо
+     * в процессе опроса, поэтому изменяемые поля не требуют синхронизации
+     */
+    private static final class PendingOperation implements Delayed {
+
+        private final String operationId;
+        private final ArtOperationCallback callback;
+        private final Map<String, String> mdcContext;
+
+        private int attempts;
+        private long nextPollAtNanos;
+
+        private PendingOperation(String operationId, ArtOperationCallback callback, Map<String, String> mdcContext) {
+            this.operationId = operationId;
+            this.callback = callback;
+            this.mdcContext = mdcContext;
+        }
+
+        private void scheduleNextPoll(long delayMillis) {
+            nextPollAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+
+        @Override
+        public long getDelay(@NotNull TimeUnit unit) {
+            return unit.convert(nextPollAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(@NotNull Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.efedorchenko.gptbot.yandex.service;
+
+import com.efedorchenko.gptbot.configuration.properties.YandexProperties;
+import com.efedorchenko.gptbot.yandex.model.GptMessageUnit;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Формирование контекста запроса к {@code YandexGPT} в пределах бюджета токенов
+ * <p>
+ * Вместо фиксированного количества сообщений в запрос попадает столько последних сообщений истории, сколько
+ * умещается в {@code yandex.chatbot-history-token-budget} вместе с вопросом. Поэтому размер запроса, а вместе с
+ * ним время ответа и стоимость, не зависят от того, насколько длинные сообщения писал юзер
+ * <p>
+ * Токены оцениваются по длине текста ({@link GptMessageUnit#baseTokenEstimate()}) и умножаются на поправочный
+ * коэффициент. После каждого ответа модели коэффициент уточняется по фактическому количеству входных токенов
+ * ({@code Usage.inputTextTokens}), так что оценка сама подстраивается под токенизатор модели и язык юзеров
+ */
+@Slf4j
+@Component
+public class HistoryTokenBudget {
+
+    /** Вес нового наблюдения в скользящем среднем поправочного коэффициента */
+    private static final double CALIBRATION_SMOOTHING = 0.1;
+    private static final double MIN_CALIBRATION = 0.25;
+    private static final double MAX_CALIBRATION = 4.0;
+
+    private final YandexProperties yandexProperties;
+
+    /** Поправочный коэффициент оценки, хранится как биты {@code double} */
+    private final AtomicLong calibration = new AtomicLong(Double.doubleToLongBits(1.0));
+
+    public HistoryTokenBudget(YandexProperties yandexProperties, MeterRegistry meterRegistry) {
+        this.yandexProperties = yandexProperties;
+        Gauge.builder("yandex.gpt.tokens.calibration", this, HistoryTokenBudget::getCalibration).register(meterRegistry);
+    }
+
+    /**
+     * Собирает сообщения для запроса: вопрос и самые новые сообщения истории, умещающиеся в бюджет. Вопрос
+     * включается всегда, даже если сам по себе превышает бюджет. Контекст не начинается с ответа модели, чтобы
+     * модель не получила ответ без вопроса, на который он был дан
+     *
+     * @param history  история переписки, от старых сообщений к новым
+     * @param question новый вопрос юзера
+     * @return изменяемый список сообщений в хронологическом порядке, последнее из которых - вопрос
+     */
+    public List<GptMessageUnit> fit(List<GptMessageUnit> history, GptMessageUnit question) {
+
+        double factor = getCalibration();
+        long budget = yandexProperties.getChatbotHistoryTokenBudget();
+        long used = Math.round(question.baseTokenEstimate() * factor);
+
+        Deque<GptMessageUnit> window = new ArrayDeque<>();
+        for (int i = history.size() - 1; i >= 0; i--) {
+            GptMessageUnit unit = history.get(i);
+            long unitTokens = Math.round(unit.baseTokenEstimate() * factor);
+            if (used + unitTokens > budget) {
+                break;
+            }
+            used += unitTokens;
+            window.addFirst(unit);
+        }
+        while (!window.isEmpty() && GptMessageUnit.Role.ASSISTANT.getRole().equals(window.peekFirst().getRole())) {
+            window.pollFirst();
+        }
+
+        if (window.size() < history.size()) {
+            log.debug("History trimmed to the token budget: {} of {} messages sent, ~{} tokens", window.size(), history.size(), used);
+        }
+        List<GptMessageUnit> messages = new ArrayList<>(window.size() + 1);
+        messages.addAll(window);
+        messages.add(question);
+        return messages;
+    }
+
+    /**
+     * @return сумма грубых оценок сообщений, которую нужно передать в {@link HistoryTokenBudget#calibrate(int, int)}
+     */
+    public int baseEstimate(List<GptMessageUnit> messages) {
+        int sum = 0;
+        for (GptMessageUnit message : messages) {
+            sum += message.baseTokenEstimate();
+        }
+        return sum;
+    }
+
+    /**
+     * Уточняет поправочный коэффициент по фактическому расходу токенов
+     *
+     * @param baseEstimate      сумма грубых оценок сообщений запроса
+     * @param actualInputTokens фактическое количество входных токенов, посчитанное моделью
+     */
+    public void calibrate(int baseEstimate, int actualInputTokens) {
+        if (baseEstimate <= 0 || actualInputTokens <= 0) {
+            return;
+        }
+        double observed = Math.clamp((double) actualInputTokens / baseEstimate, MIN_CALIBRATION, MAX_CALIBRATION);
+        calibration.updateAndGet(bits -> Double.doubleToLongBits(
+                Double.longBitsToDouble(bits) * (1 - CALIBRATION_SMOOTHING) + observed * CALIBRATION_SMOOTHING));
+    }
+
+    public double getCalibration() {
+        return Double.longBitsToDouble(calibration.get());
+    }
+
+}
@@ -0,0 +1,241 @@
+package com.efedorchenko.gptbot.yandex.service;
+
+import com.efedorchenko.gptbot.configuration.OkHttpClientConfiguration;
+import com.efedorchenko.gptbot.configuration.properties.YandexProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PostConstruct;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.efedorchenko.gptbot.utils.logging.LogUtils.NETWORK_MARKER;
+
+/**
+ * Владелец IAM-токена для запросов к API Yandex Cloud
+ * <p>
+ * Токен публикуется через {@code volatile}-поле вместе со сроком действия из ответа IAM ({@code expiresAt}).
+ * Обновление планируется заранее, примерно на {@link IamTokenManager#REFRESH_AT_LIFETIME_SHARE} срока действия
+ * со случайным сдвигом, чтобы экземпляры приложения, запущенные одновременно, не обновляли токен одновременно.
+ * Одновременные запросы на обновление (плановое, после ответа {@code 401}, при старте) склеиваются в один
+ * запрос к IAM, остальные ждут его результата
+ * <p>
+ * Запрос, получивший {@code 401 Unauthorized}, повторяется один раз с новым токеном в
+ * {@link com.efedorchenko.gptbot.configuration.interceptor.IamAuthInterceptor}
+ */
+@Slf4j
+@Component
+public class IamTokenManager {
+
+    private static final double REFRESH_AT_LIFETIME_SHARE = 0.75;
+    private static final double REFRESH_JITTER_SHARE = 0.05;
+    private static final Duration DEFAULT_LIFETIME = Duration.ofHours(12);
+    private static final Duration MIN_REFRESH_DELAY = Duration.ofMinutes(1);
+    private static final long SECOND_ATTEMPT_DELAY_MILLIS = 5_000L;
+
+    private volatile IamToken current;
+    @Nullable
+    private CompletableFuture<IamToken> inFlight;   // Только под блокировкой this
+
+    private final OkHttpClient httpClient;
+    private final ObjectMapper objectMapper;
+    private final YandexProperties yandexProperties;
+    private final ExecutorService executorServiceOfVirtual;
+    private final ScheduledExecutorService singleThreadScheduler;
+
+    private final Counter refreshFailures;
+
+    public IamTokenManager(OkHttpClient httpClient,
+                           ObjectMapper objectMapper,
+                           YandexProperties yandexProperties,
+                           ExecutorService executorServiceOfVirtual,
+                           ScheduledExecutorService singleThreadScheduler,
+                           MeterRegistry meterRegistry) {
+        this.httpClient = httpClient;
+        this.objectMapper = objectMapper;
+        this.yandexProperties = yandexProperties;
+        this.executorServiceOfVirtual = executorServiceOfVirtual;
+        this.singleThreadScheduler = singleThreadScheduler;
+        this.refreshFailures = Counter.builder("yandex.iam.refresh.failures").register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        refresh(null);
+    }
+
+    /**
+     * Возвращает действующий токен. Если токена еще нет или его срок истек, ждет обновления
+     *
+     * @throws IllegalStateException если получить токен не удалось
+     */
+    public String getToken() {
+        IamToken token = current;
+        if (token != null && Instant.now().isBefore(token.expiresAt())) {
+            return token.value();
+        }
+        return awaitRefresh(token);
+    }
+
+    /**
+     * Вызывается, когда запрос с токеном {@code rejectedToken} получил {@code 401 Unauthorized}. Если токен
+     * уже обновлен другим запросом, возвращает новый токен без обращения к IAM, иначе обновляет токен
+     *
+     * @throws IllegalStateException если получить токен не удалось
+     */
+    public String refreshRejected(String rejectedToken) {
+        IamToken token = current;
+        if (token != null && !token.value().equals(rejectedToken)) {
+            return token.value();
+        }
+        log.warn(NETWORK_MARKER, "IAM token was rejected by Yandex Cloud, refreshing ahead of schedule");
+        return awaitRefresh(token);
+    }
+
+    private String awaitRefresh(@Nullable IamToken stale) {
+        try {
+            return refresh(stale).join().value();
+        } catch (CompletionException ex) {
+            throw new IllegalStateException("IAM token is unavailable", ex.getCause());
+        }
+    }
+
+    /**
+     * Запускает обновление, если токен еще равен {@code stale}, иначе возвращает уже обновленный токен.
+     * Пока обновление идет, все вызовы получают одну и ту же future
+     */
+    private synchronized CompletableFuture<IamToken> refresh(@Nullable IamToken stale) {
+
+        IamToken token = current;
+        if (token != null && token != stale) {
+            return CompletableFuture.completedFuture(token);
+        }
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        CompletableFuture<IamToken> refreshing = CompletableFuture.supplyAsync(this::fetchWithRetry, executorServiceOfVirtual);
+        inFlight = refreshing;
+        refreshing.whenComplete((fresh, ex) -> {
+            synchronized (this) {
+                inFlight = null;
+                if (fresh != null) {
+                    current = fresh;
+                }
+            }
+            if (fresh != null) {
+                log.debug("IamToken has been updated, expires at {}", fresh.expiresAt());
+                scheduleRefresh(fresh, refreshDelay(fresh));
+            } else {
+                refreshFailures.increment();
+                log.error(NETWORK_MARKER, "Cannot update IAM-token, retry in {}. Ex: ", MIN_REFRESH_DELAY, ex);
+                scheduleRefresh(current, MIN_REFRESH_DELAY);
+            }
+        });
+        return refreshing;
+    }
+
+    private void scheduleRefresh(@Nullable IamToken stale, Duration delay) {
+        singleThreadScheduler.schedule(() -> refresh(stale), delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static Duration refreshDelay(IamToken token) {
+        long lifetimeMillis = Duration.between(Instant.now(), token.expiresAt()).toMillis();
+        double share = REFRESH_AT_LIFETIME_SHARE
+                       + ThreadLocalRandom.current().nextDouble(-REFRESH_JITTER_SHARE, REFRESH_JITTER_SHARE);
+        Duration delay = Duration.ofMillis((long) (lifetimeMillis * share));
+        return delay.compareTo(MIN_REFRESH_DELAY) < 0 ? MIN_REFRESH_DELAY : delay;
+    }
+
+    private IamToken fetchWithRetry() {
+        try {
+            return fetch();
+        } catch (IOException first) {
+            log.warn(NETWORK_MARKER, "Cannot update IAM-token on the first try, try again... Ex: {}", first.getMessage());
+            try {
+                Thread.sleep(SECOND_ATTEMPT_DELAY_MILLIS);
+                return fetch();
+            } catch (IOException second) {
+                throw new CompletionException(second);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(ie);
+            }
+        }
+    }
+
+    private IamToken fetch() throws IOException {
+
+        String body = objectMapper.writeValueAsString(new IamTokenRequest(yandexProperties.getOauthToken()));
+        Request request = new Request.Builder()
+                .url(yandexProperties.getIamTokenUpdaterUrl())
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .header(YandexProperties.FOLDER_ID_HEADER_NAME, yandexProperties.getFolderId())
+                .post(RequestBody.create(body, OkHttpClientConfiguration.MT_APPLICATION_JSON))
+                .build();
+
+        try (Response response = httpClient.newCall(request).execute()) {
+            if (!response.isSuccessful() || response.body() == null) {
+                throw new IOException("IAM responded with status " + response.code());
+            }
+            IamTokenResponse tokenResponse = objectMapper.readValue(response.body().string(), IamTokenResponse.class);
+            return new IamToken(tokenResponse.getIamToken(), parseExpiresAt(tokenResponse.getExpiresAt()));
+        }
+    }
+
+    private static Instant parseExpiresAt(@Nullable String expiresAt) {
+        if (expiresAt != null) {
+            try {
+                return Instant.parse(expiresAt);
+            } catch (DateTimeParseException ex) {
+                log.warn(NETWORK_MARKER, "Unexpected IAM token expiresAt '{}', default lifetime is used", expiresAt);
+            }
+        }
+        return Instant.now().plus(DEFAULT_LIFETIME);
+    }
+
+    private record IamToken(String value, Instant expiresAt) {
+
+        @Override
+        public String toString() {
+            return "IamToken[expiresAt=" + expiresAt + "]";
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class IamTokenRequest {
+        private final String yandexPassportOauthToken;
+    }
+
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    private static class IamTokenResponse {
+        private final String expiresAt;
+        @ToString.Exclude
+        private final String iamToken;
+    }
+
+}
@@ -0,0 +1,245 @@
+package com.efedorchenko.gptbot.yandex.service;
+
+import jakarta.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Нарезает голосовое сообщение в формате {@code Ogg/Opus} на самостоятельные {@code Ogg/Opus}-файлы
+ * ограниченной длительности без перекодирования
+ * <p>
+ * Поток читается постранично: каждый сегмент получает копию заголовочных страниц ({@code OpusHead} и
+ * {@code OpusTags}) и следующие за ними аудио-страницы, пока их длительность не превысит
+ * {@code maxSegmentSamples}. Граница сегмента проходит только между страницами и никогда не разрывает пакет,
+ * продолженный на следующей странице. Номера страниц, позиции ({@code granule position}) и флаг конца потока
+ * в каждом сегменте пересчитываются так, будто это отдельный файл, после чего пересчитывается контрольная сумма
+ * страницы
+ * <p>
+ * В памяти одновременно находится только текущий сегмент
+ */
+final class OggOpusSegmenter {
+
+    /** Частота, в которой выражены позиции {@code Ogg/Opus}, независимо от частоты исходной записи */
+    static final int OPUS_GRANULE_RATE = 48_000;
+
+    private static final int HEADER_SIZE = 27;
+    private static final int FLAG_CONTINUED = 0x01;
+    private static final int FLAG_FIRST_PAGE = 0x02;
+    private static final int FLAG_LAST_PAGE = 0x04;
+    private static final long NO_GRANULE = -1;
+    private static final int[] CRC_TABLE = crcTable();
+
+    private final InputStream source;
+    private final long maxSegmentSamples;
+
+    private byte[] headerPages;
+    private int headerPageCount;
+    private int preSkip;
+
+    @Nullable
+    private Page pending;
+    private long lastGranule;
+
+    OggOpusSegmenter(InputStream source, long maxSegmentSamples) {
+        this.source = source;
+        this.maxSegmentSamples = maxSegmentSamples;
+    }
+
+    /**
+     * @return следующий сегмент как самостоятельный {@code Ogg/Opus}-файл или {@code null}, если поток закончился
+     * @throws IOException если поток не читается или не является {@code Ogg/Opus}
+     */
+    @Nullable
+    byte[] next() throws IOException {
+
+        if (headerPages == null) {
+            readHeaderPages();
+        }
+        Page page = pending != null ? pending : readPage();
+        pending = null;
+        if (page == null) {
+            return null;
+        }
+
+        long segmentStart = lastGranule;
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        segment.write(headerPages);
+        int sequence = headerPageCount;
+
+        Page previous = null;
+        while (page != null) {
+            if (previous != null && !page.isContinued() && page.granule() != NO_GRANULE
+                && page.granule() - segmentStart > maxSegmentSamples) {
+                pending = page;
+                break;
+            }
+            if (previous != null) {
+                previous.writeTo(segment, sequence++, rebase(previous.granule(), segmentStart), false);
+            }
+            previous = page;
+            if (page.granule() != NO_GRANULE) {
+                lastGranule = page.granule();
+            }
+            page = readPage();
+        }
+        previous.writeTo(segment, sequence, rebase(previous.granule(), segmentStart), true);
+        return segment.toByteArray();
+    }
+
+    /**
+     * Первый сегмент начинается с позиции {@code 0} и сохраняет исходные позиции. Позиции остальных сдвигаются
+     * к началу и, как в любом файле, включают {@code pre-skip}, который декодер отбросит в начале сегмента
+     */
+    private long rebase(long granule, long segmentStart) {
+        if (granule == NO_GRANULE || segmentStart == 0) {
+            return granule;
+        }
+        return granule - segmentStart + preSkip;
+    }
+
+    private void readHeaderPages() throws IOException {
+
+        Page head = readPage();
+        if (head == null || !head.startsWith("OpusHead")) {
+            throw new IOException("Not an Ogg/Opus stream: OpusHead is missing");
+        }
+        preSkip = (head.body()[10] & 0xFF) | (head.body()[11] & 0xFF) << 8;
+
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        head.writeOriginalTo(headers);
+        headerPageCount = 1;
+
+//        Последняя страница OpusTags имеет позицию 0, промежуточные (если комментарии не уместились) - -1
+        Page tags;
+        do {
+            tags = readPage();
+            if (tags == null) {
+                throw new IOException("Not an Ogg/Opus stream: OpusTags is missing");
+            }
+            tags.writeOriginalTo(headers);
+            headerPageCount++;
+        } while (tags.granule() != 0);
+
+        headerPages = headers.toByteArray();
+    }
+
+    @Nullable
+    private Page readPage() throws IOException {
+
+        byte[] header = new byte[HEADER_SIZE];
+        int read = source.readNBytes(header, 0, HEADER_SIZE);
+        if (read == 0) {
+            return null;
+        }
+        if (read < HEADER_SIZE || header[0] != 'O' || header[1] != 'g' || header[2] != 'g' || header[3] != 'S') {
+            throw new IOException("Not an Ogg stream: broken page header");
+        }
+
+        int segmentCount = header[26] & 0xFF;
+        byte[] segmentTable = readFully(segmentCount);
+        int bodySize = 0;
+        for (byte lacing : segmentTable) {
+            bodySize += lacing & 0xFF;
+        }
+        return new Page(header, segmentTable, readFully(bodySize));
+    }
+
+    private byte[] readFully(int size) throws IOException {
+        byte[] bytes = source.readNBytes(size);
+        if (bytes.length < size) {
+            throw new IOException("Ogg stream is truncated");
+        }
+        return bytes;
+    }
+
+    /**
+     * @param header       первые 27 байт страницы: сигнатура, версия, флаги, позиция, номер потока, номер страницы,
+     *                     контрольная сумма и количество сегментов
+     * @param segmentTable длины сегментов страницы
+     */
+    private record Page(byte[] header, byte[] segmentTable, byte[] body) {
+
+        private int flags() {
+            return header[5] & 0xFF;
+        }
+
+        private boolean isContinued() {
+            return (flags() & FLAG_CONTINUED) != 0;
+        }
+
+        private long granule() {
+            long granule = 0;
+            for (int i = 13; i >= 6; i--) {
+                granule = granule << 8 | (header[i] & 0xFF);
+            }
+            return granule;
+        }
+
+        private boolean startsWith(String magic) {
+            if (body.length < magic.length()) {
+                return false;
+            }
+            for (int i = 0; i < magic.length(); i++) {
+                if (body[i] != magic.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void writeOriginalTo(ByteArrayOutputStream out) {
+            out.writeBytes(header);
+            out.writeBytes(segmentTable);
+            out.writeBytes(body);
+        }
+
+        private void writeTo(ByteArrayOutputStream out, int sequence, long granule, boolean isLast) {
+
+            byte[] rewritten = header.clone();
+            rewritten[5] = (byte) ((flags() & ~(FLAG_FIRST_PAGE | FLAG_LAST_PAGE)) | (isLast ? FLAG_LAST_PAGE : 0));
+            for (int i = 0; i < 8; i++) {
+                rewritten[6 + i] = (byte) (granule >>> (8 * i));
+            }
+            for (int i = 0; i < 4; i++) {
+                rewritten[18 + i] = (byte) (sequence >>> (8 * i));
+                rewritten[22 + i] = 0;
+            }
+
+            int crc = crc(0, rewritten);
+            crc = crc(crc, segmentTable);
+            crc = crc(crc, body);
+            for (int i = 0; i < 4; i++) {
+                rewritten[22 + i] = (byte) (crc >>> (8 * i));
+            }
+
+            out.writeBytes(rewritten);
+            out.writeBytes(segmentTable);
+            out.writeBytes(body);
+        }
+    }
+
+    /**
+     * CRC-32 формата Ogg: полином {@code 0x04C11DB7}, начальное значение {@code 0}, без отражения битов
+     */
+    private static int crc(int crc, byte[] bytes) {
+        for (byte b : bytes) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ (b & 0xFF)) & 0xFF];
+        }
+        return crc;
+    }
+
+    private static int[] crcTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int r = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                r = (r & 0x80000000) != 0 ? (r << 1) ^ 0x04C11DB7 : r << 1;
+            }
+            table[i] = r;
+        }
+        return table;
+    }
+
+}
@@ -3,66 +3,147 @@ package com.efedorchenko.gptbot.yandex.service;
 import com.efedorchenko.gptbot.configuration.properties.YandexProperties;
 import com.efedorchenko.gptbot.yandex.model.SpeechKitAnswer;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.Nullable;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
-import org.slf4j.MDC;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.time.LocalDate;
-import java.time.LocalTime;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.StringJoiner;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-
-import static com.efedorchenko.gptbot.utils.logging.LogUtils.LOGIC_MARKER;
+import java.util.concurrent.Semaphore;
 
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class SpeechRecogniser {
 
+    /**
+     * Голосовые больше этого размера не сохраняются в архив нераспознанных и не отправляются повторно после
+     * {@code 401 Unauthorized}, чтобы копия не занимала в памяти больше, чем голосовое обычной длины
+     */
+    private static final int ARCHIVE_COPY_MAX_BYTES = 512 * 1024;
+    private static final okhttp3.MediaType VOICE_MEDIA_TYPE = okhttp3.MediaType.parse("multipart/form-data");
+
     private final OkHttpClient httpClient;
     private final ObjectMapper objectMapper;
     private final YandexProperties yandexProperties;
+    private final IamTokenManager iamTokenManager;
     private final ExecutorService executorServiceOfVirtual;
+    private final UnrecognizedVoiceArchive unrecognizedVoiceArchive;
+
+    /**
+     * Распознает голосовое, передавая его в SpeechKit по мере чтения из {@code voice}, см. {@link VoiceRequestBody}.
+     * Синхронное распознавание SpeechKit принимает записи не длиннее 30 секунд, более длинные голосовые
+     * распознаются через {@link SpeechRecogniser#doRecognizeSegmented(InputStream)}
+     *
+     * @param voice         поток скачивания голосового. Закрывает вызывающий код
+     * @param contentLength размер голосового в байтах или {@code null}, если неизвестен
+     */
+    public Optional<SpeechKitAnswer> doRecognize(InputStream voice, @Nullable Long contentLength) {
+
+        VoiceRequestBody voiceBody = new VoiceRequestBody(voice, contentLength != null ? contentLength : -1,
+                VOICE_MEDIA_TYPE, ARCHIVE_COPY_MAX_BYTES);
+        Optional<SpeechKitAnswer> recAnswer = execute(voiceBody);
+
+        if (recAnswer.isPresent() && recAnswer.get().getResult() != null && recAnswer.get().getResult().isEmpty()) {
+            log.warn("Unrecognized voice message has been detected, Saving");
+            voiceBody.archiveCopy().ifPresent(unrecognizedVoiceArchive::submit);
+            return Optional.empty();
+        }
+        return recAnswer;
+    }
+
+    /**
+     * Распознает голосовое любой длины: запись нарезается на сегменты не длиннее
+     * {@link YandexProperties#getRecognizeSegmentSeconds()} (см. {@link OggOpusSegmenter}), которые распознаются
+     * параллельно, не более {@link YandexProperties#getRecognizeParallelSegments()} одновременно. Следующий
+     * сегмент читается из {@code voice}, только когда освобождается место, поэтому в памяти находится не больше
+     * сегментов, чем распознается одновременно. Результаты склеиваются в порядке сегментов
+     * <p>
+     * Если SpeechKit вернул ошибку хотя бы для одного сегмента, возвращается первая ошибка. Если не удалось
+     * распознать ни одного сегмента - пустой {@link Optional}. Нераспознанные длинные голосовые в архив не
+     * сохраняются
+     *
+     * @param voice поток скачивания голосового. Закрывает вызывающий код
+     */
+    public Optional<SpeechKitAnswer> doRecognizeSegmented(InputStream voice) {
+
+        long maxSegmentSamples = (long) yandexProperties.getRecognizeSegmentSeconds() * OggOpusSegmenter.OPUS_GRANULE_RATE;
+        OggOpusSegmenter segmenter = new OggOpusSegmenter(voice, maxSegmentSamples);
+        Semaphore permits = new Semaphore(yandexProperties.getRecognizeParallelSegments());
+        List<CompletableFuture<Optional<SpeechKitAnswer>>> segments = new ArrayList<>();
+
+        try {
+            byte[] segment;
+            while ((segment = segmenter.next()) != null) {
+                permits.acquire();
+                RequestBody segmentBody = RequestBody.create(segment, VOICE_MEDIA_TYPE);
+                segments.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return execute(segmentBody);
+                    } finally {
+                        permits.release();
+                    }
+                }, executorServiceOfVirtual));
+            }
+
+        } catch (IOException ex) {
+            log.error("Cannot split voice message into segments. Ex: {}", ex.getMessage());
+            return Optional.empty();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+        log.debug("Voice message has been split into {} segments", segments.size());
+
+        StringJoiner text = new StringJoiner(" ");
+        for (CompletableFuture<Optional<SpeechKitAnswer>> segmentAnswer : segments) {
+            Optional<SpeechKitAnswer> recAnswer = segmentAnswer.join();
+            if (recAnswer.isEmpty() || recAnswer.get().getResult() == null) {
+                return recAnswer;
+            }
+            if (!recAnswer.get().getResult().isBlank()) {
+                text.add(recAnswer.get().getResult().strip());
+            }
+        }
 
-    public Optional<SpeechKitAnswer> doRecognize(byte[] bytes) {
+        if (text.length() == 0) {
+            log.warn("Unrecognized segmented voice message has been detected");
+            return Optional.empty();
+        }
+        return Optional.of(new SpeechKitAnswer(text.toString(), null, null));
+    }
+
+    /**
+     * @return ответ SpeechKit (с результатом или с ошибкой) или пустой {@link Optional}, если ответ не получен
+     */
+    private Optional<SpeechKitAnswer> execute(RequestBody voiceBody) {
 
         Request request = new Request.Builder()
                 .url(yandexProperties.getRecognizeUrl())
-                .header(HttpHeaders.AUTHORIZATION, "Bearer " + IamTokenSupplier.IAM_TOKEN)
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + iamTokenManager.getToken())
                 .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE)
                 .header(YandexProperties.FOLDER_ID_HEADER_NAME, yandexProperties.getFolderId())
-                .post(RequestBody.create(bytes, okhttp3.MediaType.parse("multipart/form-data")))
+                .post(voiceBody)
                 .build();
 
         try (Response response = httpClient.newCall(request).execute()) {
 
             String string = response.body().string();
-            SpeechKitAnswer recAnswer = objectMapper.readValue(string, SpeechKitAnswer.class);
-
 //            Возвращается сам объект, чтобы выше достать errorMessage
-            if (recAnswer.getResult() == null) {
-                return Optional.of(recAnswer);
-            }
-            if (recAnswer.getResult().isEmpty()) {
-                log.warn("Unrecognized voice message has been detected, Saving");
-                saveUnrecognizedVoiceAsync(bytes);
-                return Optional.empty();
-            }
-            return Optional.of(recAnswer);
+            return Optional.of(objectMapper.readValue(string, SpeechKitAnswer.class));
 
         } catch (IOException ex) {
             log.error("Unexpected http-response from the SpeechKit network. Ex: {}", ex.getMessage());
@@ -70,36 +151,4 @@ public class SpeechRecogniser {
         }
     }
 
-    private void saveUnrecognizedVoiceAsync(byte[] bytes) {
-
-        if (bytes.length == 0) {
-            return;
-        }
-
-        CompletableFuture.runAsync(() -> {
-
-            String mdcValue = MDC.get("RqUID") ;
-            String fileNameWithoutExtension = mdcValue == null ? String.valueOf(LocalTime.now()) : mdcValue;
-            String filePath = "logs/unrecognized_voices/" + LocalDate.now() + "/" + fileNameWithoutExtension + ".ogg";
-
-            try {
-                String dirPath = new File(filePath).getParent();
-                if (dirPath != null) {
-                    Path path = Paths.get(dirPath);
-                    if (!Files.exists(path)) {
-                        Files.createDirectories(path);
-                    }
-                }
-                try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                    fos.write(bytes);
-                    log.debug("Unrecognized voice message has been saved");
-                }
-
-            } catch (IOException e) {
-                log.error(LOGIC_MARKER, "Exception occurred when writing an unrecognized voice to a file: {}", e.getMessage());
-            }
-
-        }, executorServiceOfVirtual);
-    }
-
 }
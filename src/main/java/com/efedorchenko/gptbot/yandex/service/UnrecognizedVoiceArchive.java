@@ -0,0 +1,307 @@
+package com.efedorchenko.gptbot.yandex.service;
+
+import com.efedorchenko.gptbot.aop.MdcConfigurer;
+import com.efedorchenko.gptbot.configuration.properties.VoiceArchiveProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Stream;
+
+import static com.efedorchenko.gptbot.utils.logging.LogUtils.LOGIC_MARKER;
+
+/**
+ * Архив голосовых, которые SpeechKit не смог распознать
+ * <p>
+ * Голосовые складываются в ограниченную очередь и записываются единственным потоком. Голосовые одного дня
+ * дописываются друг за другом в один файл {@code <дата>.voices}, а в файл {@code <дата>.index} для каждого
+ * пишется строка {@code <смещение>\t<длина>\t<время>\t<RqUID>}, по которой голосовое можно вырезать из файла дня.
+ * Все голосовые, накопившиеся в очереди к моменту записи, записываются одной операцией
+ * <p>
+ * Архив не может занять больше {@link VoiceArchiveProperties#getMaxTotalBytes()}: при превышении удаляются самые
+ * старые дни. Дни старше {@link VoiceArchiveProperties#getRetentionDays()} удаляются при старте и при смене дня.
+ * Если очередь заполнена или место освободить нельзя, голосовое не архивируется - архив не должен тормозить
+ * распознавание или заполнять диск, когда SpeechKit массово не распознает голосовые
+ */
+@Slf4j
+@Component
+public class UnrecognizedVoiceArchive {
+
+    private static final String DATA_EXTENSION = ".voices";
+    private static final String INDEX_EXTENSION = ".index";
+    private static final int MAX_BATCH_SIZE = 32;
+
+    private final BlockingQueue<ArchivedVoice> queue;
+    private final Path directory;
+    private final VoiceArchiveProperties voiceArchiveProperties;
+
+    private final Counter droppedQueueFull;
+    private final Counter droppedSizeCap;
+
+    private Thread writer;
+
+//    Состояние ниже используется только потоком writer
+    private LocalDate segmentDay;
+    private FileChannel dataChannel;
+    private FileChannel indexChannel;
+    private long segmentSize;
+    private long totalBytes;
+
+    public UnrecognizedVoiceArchive(VoiceArchiveProperties voiceArchiveProperties, MeterRegistry meterRegistry) {
+        this.voiceArchiveProperties = voiceArchiveProperties;
+        this.directory = Paths.get(voiceArchiveProperties.getDirectory());
+        this.queue = new ArrayBlockingQueue<>(voiceArchiveProperties.getQueueCapacity());
+
+        Gauge.builder("voice.archive.queue", queue, BlockingQueue::size).register(meterRegistry);
+        this.droppedQueueFull = Counter.builder("voice.archive.dropped").tag("reason", "queue-full").register(meterRegistry);
+        this.droppedSizeCap = Counter.builder("voice.archive.dropped").tag("reason", "size-cap").register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        writer = Thread.ofVirtual().name("unrecognized-voice-archive").start(this::runWriter);
+    }
+
+    @PreDestroy
+    public void stop() {
+        writer.interrupt();
+    }
+
+    /**
+     * Ставит голосовое в очередь на запись в архив. Не блокируется: если очередь заполнена, голосовое отбрасывается
+     */
+    public void submit(byte[] voice) {
+
+        if (voice.length == 0) {
+            return;
+        }
+        ArchivedVoice archived = new ArchivedVoice(voice, Instant.now(), MDC.get(MdcConfigurer.RQUID));
+        if (!queue.offer(archived)) {
+            droppedQueueFull.increment();
+            log.warn(LOGIC_MARKER, "Unrecognized voices archive queue is full, voice {} is not saved", archived.rqUid());
+        }
+    }
+
+    private void runWriter() {
+
+        try {
+            Files.createDirectories(directory);
+            removeExpiredDays(LocalDate.now());
+            totalBytes = archiveSize();
+        } catch (IOException ex) {
+            log.error(LOGIC_MARKER, "Cannot prepare unrecognized voices archive in {}. Ex: {}", directory, ex.getMessage());
+        }
+
+        List<ArchivedVoice> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                try {
+                    writeBatch(batch);
+                    log.debug("{} unrecognized voice messages have been saved", batch.size());
+                } catch (IOException ex) {
+                    log.error(LOGIC_MARKER, "Exception occurred when writing unrecognized voices to the archive: {}", ex.getMessage());
+                    closeSegment();
+                    recountTotalBytes();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeSegment();
+        }
+    }
+
+    private void writeBatch(List<ArchivedVoice> batch) throws IOException {
+
+        List<ByteBuffer> voices = new ArrayList<>(batch.size());
+        StringBuilder index = new StringBuilder();
+
+        for (ArchivedVoice voice : batch) {
+            LocalDate day = LocalDate.ofInstant(voice.receivedAt(), ZoneId.systemDefault());
+            if (!day.equals(segmentDay)) {
+                flush(voices, index);
+                openSegment(day);
+            }
+            if (!reserve(voice.bytes().length)) {
+                droppedSizeCap.increment();
+                log.warn(LOGIC_MARKER, "Unrecognized voices archive is full, voice {} is not saved", voice.rqUid());
+                continue;
+            }
+            index.append(segmentSize).append('\t').append(voice.bytes().length).append('\t')
+                    .append(voice.receivedAt()).append('\t').append(voice.rqUid()).append('\n');
+            voices.add(ByteBuffer.wrap(voice.bytes()));
+            segmentSize += voice.bytes().length;
+        }
+        flush(voices, index);
+    }
+
+    private void flush(List<ByteBuffer> voices, StringBuilder index) throws IOException {
+
+        if (voices.isEmpty()) {
+            return;
+        }
+        writeFully(dataChannel, voices.toArray(ByteBuffer[]::new));
+        byte[] indexBytes = index.toString().getBytes(StandardCharsets.UTF_8);
+        writeFully(indexChannel, new ByteBuffer[]{ByteBuffer.wrap(indexBytes)});
+        totalBytes += indexBytes.length;
+
+        voices.clear();
+        index.setLength(0);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    /**
+     * Учитывает {@code size} байт в размере архива, при необходимости удаляя самые старые дни, кроме текущего
+     *
+     * @return {@code false}, если место освободить не удалось
+     */
+    private boolean reserve(int size) throws IOException {
+
+        long maxTotalBytes = voiceArchiveProperties.getMaxTotalBytes();
+        if (totalBytes + size > maxTotalBytes) {
+            for (LocalDate day : archivedDays().keySet()) {
+                if (totalBytes + size <= maxTotalBytes || day.equals(segmentDay)) {
+                    break;
+                }
+                log.warn(LOGIC_MARKER, "Unrecognized voices archive exceeds {} bytes, removing {}", maxTotalBytes, day);
+                removeDay(day);
+            }
+        }
+        if (totalBytes + size > maxTotalBytes) {
+            return false;
+        }
+        totalBytes += size;
+        return true;
+    }
+
+    private void openSegment(LocalDate day) throws IOException {
+
+        closeSegment();
+        dataChannel = FileChannel.open(directory.resolve(day + DATA_EXTENSION),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        indexChannel = FileChannel.open(directory.resolve(day + INDEX_EXTENSION),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = dataChannel.size();
+        segmentDay = day;
+        removeExpiredDays(day);
+    }
+
+    private void removeExpiredDays(LocalDate today) throws IOException {
+        LocalDate oldestKept = today.minusDays(voiceArchiveProperties.getRetentionDays() - 1L);
+        for (LocalDate archived : archivedDays().keySet()) {
+            if (archived.isBefore(oldestKept)) {
+                removeDay(archived);
+            }
+        }
+    }
+
+    /**
+     * После ошибки записи часть зарезервированных байт могла не попасть на диск, поэтому размер архива
+     * пересчитывается по файлам
+     */
+    private void recountTotalBytes() {
+        try {
+            totalBytes = archiveSize();
+        } catch (IOException ex) {
+            log.warn(LOGIC_MARKER, "Cannot recount unrecognized voices archive size. Ex: {}", ex.getMessage());
+        }
+    }
+
+    private void closeSegment() {
+
+        for (FileChannel channel : new FileChannel[]{dataChannel, indexChannel}) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    log.warn(LOGIC_MARKER, "Cannot close unrecognized voices archive file. Ex: {}", ex.getMessage());
+                }
+            }
+        }
+        dataChannel = null;
+        indexChannel = null;
+        segmentDay = null;
+    }
+
+    private void removeDay(LocalDate day) throws IOException {
+        for (Path file : archivedDays().getOrDefault(day, List.of())) {
+            long size = Files.size(file);
+            Files.deleteIfExists(file);
+            totalBytes -= size;
+        }
+    }
+
+    private long archiveSize() throws IOException {
+        long size = 0;
+        for (List<Path> files : archivedDays().values()) {
+            for (Path file : files) {
+                size += Files.size(file);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return файлы архива по дням, от самого старого дня к самому новому
+     */
+    private TreeMap<LocalDate, List<Path>> archivedDays() throws IOException {
+
+        TreeMap<LocalDate, List<Path>> days = new TreeMap<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(Files::isRegularFile).forEach(file -> {
+                LocalDate day = parseDay(file.getFileName().toString());
+                if (day != null) {
+                    days.computeIfAbsent(day, key -> new ArrayList<>()).add(file);
+                }
+            });
+        }
+        return days;
+    }
+
+    @Nullable
+    private static LocalDate parseDay(String fileName) {
+        if (!fileName.endsWith(DATA_EXTENSION) && !fileName.endsWith(INDEX_EXTENSION)) {
+            return null;
+        }
+        try {
+            return LocalDate.parse(fileName.substring(0, fileName.indexOf('.')));
+        } catch (DateTimeParseException ex) {
+            return null;
+        }
+    }
+
+    private record ArchivedVoice(byte[] bytes, Instant receivedAt, @Nullable String rqUid) {
+    }
+
+}
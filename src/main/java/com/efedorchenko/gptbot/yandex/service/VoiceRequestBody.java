@@ -0,0 +1,111 @@
+package com.efedorchenko.gptbot.yandex.service;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+
+/**
+ * Тело запроса, которое передает голосовое сообщение в SpeechKit прямо из потока скачивания из Telegram
+ * <p>
+ * Голосовое не собирается в памяти целиком: байты читаются из {@code source} порциями по
+ * {@link VoiceRequestBody#CHUNK_SIZE} и сразу пишутся в соединение, поэтому скачивание и отправка идут
+ * одновременно. Параллельно байты копируются в ограниченный буфер для архива нераспознанных голосовых. Если
+ * голосовое длиннее {@code archiveMaxBytes}, копия отбрасывается
+ * <p>
+ * Поток скачивания нельзя прочитать повторно, поэтому тело можно отправить еще раз, только если голосовое
+ * отправлено целиком и поместилось в копию: тогда повторная отправка идет из копии. Так запрос, получивший
+ * {@code 401 Unauthorized}, повторяется с новым IAM-токеном, см.
+ * {@link com.efedorchenko.gptbot.configuration.interceptor.IamAuthInterceptor}. Иначе тело одноразовое
+ */
+final class VoiceRequestBody extends RequestBody {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final InputStream source;
+    private final long contentLength;
+    private final MediaType contentType;
+    private final int archiveMaxBytes;
+
+    @Nullable
+    private ByteArrayOutputStream archiveCopy;
+    private boolean sent;
+    private boolean complete;
+
+    /**
+     * @param contentLength размер голосового из {@code Voice.getFileSize()} или {@code -1}, если неизвестен
+     */
+    VoiceRequestBody(InputStream source, long contentLength, MediaType contentType, int archiveMaxBytes) {
+        this.source = source;
+        this.contentLength = contentLength;
+        this.contentType = contentType;
+        this.archiveMaxBytes = archiveMaxBytes;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Тело одноразовое, пока не появилась полная копия голосового: иначе перехватчики, читающие тело до
+     * отправки (например, логирование), прочитали бы весь поток скачивания в память до начала передачи
+     */
+    @Override
+    public boolean isOneShot() {
+        return !isReplayable();
+    }
+
+    @Override
+    public void writeTo(@NotNull BufferedSink sink) throws IOException {
+
+        if (sent) {
+            if (!isReplayable()) {
+                throw new IOException("Voice message has already been sent and cannot be replayed");
+            }
+            archiveCopy.writeTo(sink.outputStream());
+            return;
+        }
+
+        sent = true;
+        archiveCopy = new ByteArrayOutputStream(contentLength > 0 && contentLength <= archiveMaxBytes
+                ? (int) contentLength
+                : CHUNK_SIZE);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = source.read(chunk)) != -1) {
+            sink.write(chunk, 0, read);
+            if (archiveCopy != null) {
+                if (archiveCopy.size() + read <= archiveMaxBytes) {
+                    archiveCopy.write(chunk, 0, read);
+                } else {
+                    archiveCopy = null;
+                }
+            }
+        }
+        complete = true;
+    }
+
+    private boolean isReplayable() {
+        return complete && archiveCopy != null;
+    }
+
+    /**
+     * @return копия отправленного голосового, если оно отправлено и поместилось в буфер
+     */
+    Optional<byte[]> archiveCopy() {
+        return Optional.ofNullable(archiveCopy).map(ByteArrayOutputStream::toByteArray);
+    }
+
+}
@@ -1,21 +1,23 @@
 package com.efedorchenko.gptbot.yandex.service;
 
 import com.efedorchenko.gptbot.configuration.OkHttpClientConfiguration;
-import com.efedorchenko.gptbot.configuration.RetryTemplateConfiguration;
 import com.efedorchenko.gptbot.configuration.properties.DefaultBotAnswer;
 import com.efedorchenko.gptbot.configuration.properties.YandexProperties;
 import com.efedorchenko.gptbot.data.UserModeRedisService;
-import com.efedorchenko.gptbot.exception.GptTelegramBotException;
 import com.efedorchenko.gptbot.exception.RetryAttemptNotReadyException;
 import com.efedorchenko.gptbot.service.AiModelService;
+import com.efedorchenko.gptbot.telegram.ChatActionHeartbeat;
 import com.efedorchenko.gptbot.telegram.Mode;
-import com.efedorchenko.gptbot.telegram.TelegramExecutor;
+import com.efedorchenko.gptbot.telegram.OutboundDispatcher;
 import com.efedorchenko.gptbot.utils.logging.Log;
 import com.efedorchenko.gptbot.yandex.model.ArtAnswer;
+import com.efedorchenko.gptbot.yandex.model.ArtGenerationContext;
 import com.efedorchenko.gptbot.yandex.model.ArtMessageUnit;
 import com.efedorchenko.gptbot.yandex.model.ArtRequestBody;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.OkHttpClient;
@@ -26,7 +28,6 @@ import org.slf4j.event.Level;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.retry.support.RetryTemplate;
 import org.springframework.stereotype.Component;
 import org.telegram.telegrambots.meta.api.methods.PartialBotApiMethod;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
@@ -36,15 +37,22 @@ import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageTe
 import org.telegram.telegrambots.meta.api.objects.InputFile;
 import org.telegram.telegrambots.meta.api.objects.Message;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.Base64;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.efedorchenko.gptbot.utils.logging.LogUtils.LOGIC_MARKER;
+import static com.efedorchenko.gptbot.utils.logging.LogUtils.RANRE_MARKER;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -75,33 +83,60 @@ public class YandexArtService implements AiModelService<ArtRequestBody, ArtAnswe
      private static final int MAX_COUNT_SYMBOLS = 500;
 
     /**
-     * Счетчик процентов. Показывает прогресс генерации изображения. На самом деле не имеет связи с процессом
-     * генерации, а просто постепенно увеличивается с все замедляющейся скоростью, никогда не достигая {@code 100%},
-     * расчет значения происходит в методе {@link YandexArtService#calculatePercentReady(double current)}<br>
-     * Значение в начале генерации - {@code 1%}<br>
-     * После каждой генерации сбрасывается на {@code 1%}
-     */
-    private double percentReady = 1;
-
-    /**
-     * Сообщение, отправляемое юзеру, для уведомления его о процессе генерации. Отправляемое сообщение - объект
-     * {@link EditMessageText}, после отправки возвращающий этот объект. Поле нужно для хранения контекста этого
-     * сообщения, включающего {@link Message#getMessageId()}. Необходимо, чтобы держать юзера в курсе о процессе
-     * генерации, т.к. это занимает продолжительное время. Как правило, это сообщение содержит текст
-     * {@code Генерация завершена на X%}. В качестве счетчика процентов выступает поле
-     * {@link YandexArtService#percentReady}, который рассчитывается на основе прогресса генерации
+     * Реестр генераций, находящихся в процессе, по идентификатору операции. Каждая генерация хранит собственный
+     * контекст - сообщение о прогрессе и значение этого прогресса, поэтому параллельные генерации не мешают друг
+     * другу. Запись удаляется, как только операция завершена (успешно или нет)
      */
-    private Message generationProcessMess;
+    private final Map<String, ArtGenerationContext> activeGenerations = new ConcurrentHashMap<>();
 
     private final OkHttpClient httpClient;
     private final ObjectMapper objectMapper;
-    private final RetryTemplate retryTemplate;
     private final YandexProperties yandexProperties;
-    private final TelegramExecutor telegramExecutor;
+    private final IamTokenManager iamTokenManager;
+    private final OutboundDispatcher outboundDispatcher;
     private final DefaultBotAnswer defaultBotAnswer;
     private final UserModeRedisService userModeCache;
-    private final ExecutorService executorServiceOfVirtual;
-    private final RetryTemplateConfiguration retryTemplateConfiguration;
+    private final ArtOperationPoller artOperationPoller;
+    private final ChatActionHeartbeat chatActionHeartbeat;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Изображения старше этого возраста во временной директории считаются оставшимися от предыдущего запуска
+     * (например, после резкой остановки) и удаляются при старте. Изображения других экземпляров приложения на
+     * том же хосте к этому моменту уже отправлены или отправляются
+     */
+    private static final Duration STALE_IMAGE_AGE = Duration.ofHours(1);
+
+    @PostConstruct
+    public void registerMetrics() {
+        Gauge.builder("yandex.art.generations.active", activeGenerations, Map::size)
+                .description("Number of YandexART generations in progress")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void deleteStaleImages() {
+        Path tempDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+        Instant staleBefore = Instant.now().minus(STALE_IMAGE_AGE);
+        try (DirectoryStream<Path> images = Files.newDirectoryStream(tempDirectory,
+                ArtAnswer.ImageFileDeserializer.IMAGE_FILE_PREFIX + "*" + ArtAnswer.ImageFileDeserializer.IMAGE_FILE_SUFFIX)) {
+            for (Path image : images) {
+                if (Files.getLastModifiedTime(image).toInstant().isBefore(staleBefore)) {
+                    Files.deleteIfExists(image);
+                    log.info("Stale generated image {} has been deleted", image);
+                }
+            }
+        } catch (IOException ex) {
+            log.warn(LOGIC_MARKER, "Cannot delete stale generated images in {}. Ex: {}", tempDirectory, ex.getMessage());
+        }
+    }
+
+    /**
+     * @return неизменяемое представление генераций, находящихся в процессе в данный момент
+     */
+    public Collection<ArtGenerationContext> getActiveGenerations() {
+        return Collections.unmodifiableCollection(activeGenerations.values());
+    }
 
     @Override
     public String validate(Message inputMess) {
@@ -133,7 +168,7 @@ public class YandexArtService implements AiModelService<ArtRequestBody, ArtAnswe
         Request request = new Request.Builder()
                 .url(url)
                 .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                .header(HttpHeaders.AUTHORIZATION, "Bearer " + IamTokenSupplier.IAM_TOKEN)
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + iamTokenManager.getToken())
                 .header(YandexProperties.FOLDER_ID_HEADER_NAME, yandexProperties.getFolderId())
                 .post(RequestBody.create(serializedBody, OkHttpClientConfiguration.MT_APPLICATION_JSON))
                 .build();
@@ -145,6 +180,13 @@ public class YandexArtService implements AiModelService<ArtRequestBody, ArtAnswe
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Модель генерирует изображение асинхронно, поэтому метод не дожидается результата: операция передается
+     * в {@link ArtOperationPoller}, а готовое изображение (или сообщение об ошибке) будет отправлено юзеру
+     * из {@link GenerationCallback}. В этом случае метод возвращает {@code null}, так как сразу отвечать нечего
+     */
     @Override
     @Log(Level.TRACE)
     public PartialBotApiMethod<? extends Serializable> responseProcess(ArtAnswer firstResponse, Message sourceMess) {
@@ -155,26 +197,20 @@ public class YandexArtService implements AiModelService<ArtRequestBody, ArtAnswe
             return this.generateFiled(firstResponse, sourceMess);
         }
 
-        if (firstResponse.getId() != null) {
-            generationProcessMess =
-                    telegramExecutor.sendAndReturn(new SendMessage(chatId, defaultBotAnswer.yaartRequestAccepted()));
-        } else {
+        if (firstResponse.getId() == null) {
             userModeCache.setMode(chatId, Mode.YANDEX_ART);
             return new SendMessage(chatId, defaultBotAnswer.unknownError());
         }
 
-        ArtAnswer secondResponse = retryTemplate.execute(context -> {
-                    if (context.getRetryCount() == retryTemplateConfiguration.getMaxAttempts()) {
-                        percentReady = 1;
-                    }
-                    return this.processRetryInvoke(this.retryInvoke(firstResponse.getId()), chatId)
-                            .orElseThrow(() -> new RetryAttemptNotReadyException("The picture is not ready yet"));
-                }
-        );
+        Message progressMess =
+                outboundDispatcher.sendAndReturn(new SendMessage(chatId, defaultBotAnswer.yaartRequestAccepted())).join();
+        ArtGenerationContext context = new ArtGenerationContext(
+                firstResponse.getId(), chatId, progressMess == null ? null : progressMess.getMessageId());
 
-        return secondResponse.hasErrors()
-                ? generateFiled(secondResponse, sourceMess)
-                : generateComplete(secondResponse, chatId);
+        activeGenerations.put(context.getOperationId(), context);
+        ChatActionHeartbeat.Registration chatAction = chatActionHeartbeat.register(chatId, Mode.YANDEX_ART);
+        artOperationPoller.submit(context.getOperationId(), new GenerationCallback(context, sourceMess, chatAction));
+        return null;
     }
 
     @Override
@@ -187,72 +223,110 @@ public class YandexArtService implements AiModelService<ArtRequestBody, ArtAnswe
         return ArtAnswer.class;
     }
 
-    private ArtAnswer retryInvoke(String operationId) {
-        try {
-
-            Request request = new Request.Builder()
-                    .url(yandexProperties.getArtModelCompleteUrlPattern().formatted(operationId))
-                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + IamTokenSupplier.IAM_TOKEN)
-                    .header(YandexProperties.FOLDER_ID_HEADER_NAME, yandexProperties.getFolderId())
-                    .get()
-                    .build();
-
-            try (Response response = httpClient.newCall(request).execute()) {
-                return objectMapper.readValue(response.body().string(), ArtAnswer.class);
-            }
+    private SendMessage generateFiled(ArtAnswer completedAnswer, Message sourceMess) {
+        log.error("Filed generate image. Prompt: {}. user: {}", sourceMess.getText(), sourceMess.getChatId());
+        return new SendMessage(
+                String.valueOf(sourceMess.getChatId()),
+                FILED_MODEL_ANSWER_MAP.getOrDefault(completedAnswer.getErrorDisc(), defaultBotAnswer.yaartBadPrompt())
+        );
+    }
 
-        } catch (JsonProcessingException jpe) {
-            throw new GptTelegramBotException("Request was successful, but it wasn't possible to deserialize the response into an object of the \"%s\" class. Ex:{}".formatted(ArtAnswer.class), jpe);
+    /**
+     * Изображение отправляется из временного файла, а не из потока, чтобы при повторной отправке после
+     * {@code 429 Too Many Requests} его можно было прочитать заново. Файл удаляется после отправки, а на путях,
+     * где изображение не отправляется, - через {@link YandexArtService#deleteImage(ArtAnswer)}
+     */
+    private void sendComplete(ArtAnswer answer, String chatId) {
+        InputFile result = new InputFile(answer.getResponse().getImage().toFile(), "result");
+        outboundDispatcher.send(new SendPhoto(chatId, result)).whenComplete((sent, ex) -> deleteImage(answer));
+    }
 
-        } catch (IOException ioe) {
-            throw new GptTelegramBotException("Cannot execute call of the request or read response body", ioe);
+    static void deleteImage(ArtAnswer answer) {
+        try {
+            answer.deleteImage();
+        } catch (IOException ex) {
+            log.warn(LOGIC_MARKER, "Cannot delete generated image of operation {}. Ex: {}", answer.getId(), ex.getMessage());
         }
     }
 
-    private Optional<ArtAnswer> processRetryInvoke(ArtAnswer maybeReady, String chatId) {
-        if (maybeReady != null && maybeReady.isDone()) {
-
-            CompletableFuture.runAsync(() -> {
-                telegramExecutor.send(new DeleteMessage(chatId, generationProcessMess.getMessageId()));
-                userModeCache.setMode(chatId, Mode.YANDEX_ART);
-                percentReady = 1;
-            }, executorServiceOfVirtual);
+    /**
+     * Обработчик событий операции генерации, зарегистрированной в {@link ArtOperationPoller}. Обновляет сообщение
+     * о прогрессе и держит в чате действие "отправляет фото", пока изображение не готово, а по завершении удаляет
+     * сообщение, снимает действие и режим {@link Mode#YANDEX_ART_HOLD} и отправляет юзеру результат генерации
+     */
+    private class GenerationCallback implements ArtOperationCallback {
 
-            return Optional.of(maybeReady);
+        private final ArtGenerationContext context;
+        private final Message sourceMess;
+        private final ChatActionHeartbeat.Registration chatAction;
 
-        } else {
-            CompletableFuture.runAsync(() -> {
-                Double newPercentReady = calculatePercentReady(percentReady);
-                if (!newPercentReady.equals(percentReady)) {
-                    percentReady = newPercentReady;
-                    EditMessageText mess = new EditMessageText("Генерация завершена на %.2f%%".formatted(percentReady));
-                    mess.setChatId(chatId);
-                    mess.setMessageId(generationProcessMess.getMessageId());
-                    telegramExecutor.send(mess);
-                }
+        private GenerationCallback(ArtGenerationContext context, Message sourceMess,
+                                   ChatActionHeartbeat.Registration chatAction) {
+            this.context = context;
+            this.sourceMess = sourceMess;
+            this.chatAction = chatAction;
+        }
 
-            }, executorServiceOfVirtual);
+        @Override
+        public void onPending(String operationId) {
+            double percentReady = context.getPercentReady();
+            double newPercentReady = calculatePercentReady(percentReady);
+            if (context.getProgressMessageId() != null && newPercentReady != percentReady) {
+                context.setPercentReady(newPercentReady);
+                EditMessageText mess = new EditMessageText("Генерация завершена на %.2f%%".formatted(newPercentReady));
+                mess.setChatId(context.getChatId());
+                mess.setMessageId(context.getProgressMessageId());
+                outboundDispatcher.send(mess);
+            }
+        }
 
-            return Optional.empty();
+        @Override
+        public void onComplete(ArtAnswer completedAnswer) {
+            try {
+                finish();
+            } catch (RuntimeException ex) {
+                deleteImage(completedAnswer);
+                throw ex;
+            }
+            if (completedAnswer.hasErrors()) {
+                deleteImage(completedAnswer);
+                outboundDispatcher.send(generateFiled(completedAnswer, sourceMess));
+            } else if (completedAnswer.getResponse() == null || completedAnswer.getResponse().getImage() == null) {
+                log.error(LOGIC_MARKER, "Art operation {} completed without an image", completedAnswer.getId());
+                outboundDispatcher.send(new SendMessage(context.getChatId(), defaultBotAnswer.unknownError()));
+            } else {
+                sendComplete(completedAnswer, context.getChatId());
+            }
         }
-    }
 
-    private SendMessage generateFiled(ArtAnswer completedAnswer, Message sourceMess) {
-        log.error("Filed generate image. Prompt: {}. user: {}", sourceMess.getText(), sourceMess.getChatId());
-        return new SendMessage(
-                String.valueOf(sourceMess.getChatId()),
-                FILED_MODEL_ANSWER_MAP.getOrDefault(completedAnswer.getErrorDisc(), defaultBotAnswer.yaartBadPrompt())
-        );
-    }
+        @Override
+        public void onFailure(Throwable ex) {
+            finish();
+            if (ex instanceof RetryAttemptNotReadyException ranre) {
+                log.warn(RANRE_MARKER, ranre.getMessage(), ranre);
+                outboundDispatcher.send(new SendMessage(context.getChatId(), defaultBotAnswer.retryAttemptNotReadyEx()));
+            } else {
+                log.error(LOGIC_MARKER, "Art operation failed. Mess: {}\nCause: ", ex.getMessage(), ex.getCause());
+                outboundDispatcher.send(new SendMessage(context.getChatId(), defaultBotAnswer.otherEx()));
+            }
+        }
 
-    private SendPhoto generateComplete(ArtAnswer answer, String chatId) {
-        byte[] bytes = Base64.getDecoder().decode(answer.getResponse().getImage());
-        InputFile result = new InputFile(new ByteArrayInputStream(bytes), "result");
+        private void finish() {
+            chatAction.close();
+            activeGenerations.remove(context.getOperationId());
+            log.debug("Art generation {} finished in {} ms", context.getOperationId(), context.elapsed().toMillis());
 
-        return new SendPhoto(chatId, result);
+            if (context.getProgressMessageId() != null) {
+                outboundDispatcher.send(new DeleteMessage(context.getChatId(), context.getProgressMessageId()));
+            }
+            userModeCache.setMode(context.getChatId(), Mode.YANDEX_ART);
+        }
     }
 
-    private Double calculatePercentReady(double current) {
+    /**
+     * Расчет следующего значения {@link ArtGenerationContext#getPercentReady()}
+     */
+    private double calculatePercentReady(double current) {
         double logBase;
 
         if (current < 98.7) {
@@ -5,21 +5,25 @@ import com.efedorchenko.gptbot.configuration.properties.DefaultBotAnswer;
 import com.efedorchenko.gptbot.configuration.properties.YandexProperties;
 import com.efedorchenko.gptbot.data.HistoryRedisService;
 import com.efedorchenko.gptbot.service.AiModelService;
+import com.efedorchenko.gptbot.telegram.OutboundDispatcher;
 import com.efedorchenko.gptbot.utils.logging.Log;
 import com.efedorchenko.gptbot.yandex.model.GptAnswer;
+import com.efedorchenko.gptbot.yandex.model.GptAnswer.Alternative;
+import com.efedorchenko.gptbot.yandex.model.GptAnswer.Status;
 import com.efedorchenko.gptbot.yandex.model.GptMessageUnit;
 import com.efedorchenko.gptbot.yandex.model.GptRequestBody;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
-import org.jetbrains.annotations.Nullable;
 import org.slf4j.event.Level;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.telegram.telegrambots.meta.api.methods.PartialBotApiMethod;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.Message;
 
 import java.io.IOException;
@@ -28,7 +32,7 @@ import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import static com.efedorchenko.gptbot.utils.logging.LogUtils.LOGIC_MARKER;
 
@@ -39,15 +43,17 @@ public class YandexGptService implements AiModelService<GptRequestBody, GptAnswe
 
     public static final String SERVICE_NAME = "YandexGptService";
     private static final int MAX_COUNT_SYMBOLS = 3500;
-    private static final long REQUIRED_MILLIS_BETWEEN_REQS = 1000L;
-    private static final Semaphore requestSemaphore = new Semaphore(5, true);
 
     private final OkHttpClient httpClient;
     private final ObjectMapper objectMapper;
     private final HistoryRedisService historyCache;
     private final DefaultBotAnswer defaultBotAnswer;
     private final YandexProperties yandexProperties;
+    private final IamTokenManager iamTokenManager;
+    private final OutboundDispatcher outboundDispatcher;
     private final ExecutorService executorServiceOfVirtual;
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private final HistoryTokenBudget historyTokenBudget;
 
     @Override
     public String validate(Message inputMess) {
@@ -62,16 +68,16 @@ public class YandexGptService implements AiModelService<GptRequestBody, GptAnswe
     public GptRequestBody prepareRequest(Message inputMess) {
 
         GptMessageUnit question = new GptMessageUnit(GptMessageUnit.Role.USER.getRole(), inputMess.getText());
-        List<GptMessageUnit> history = historyCache.getHistory(inputMess.getChatId());
-        history.add(question);
+        List<GptMessageUnit> messages = historyTokenBudget.fit(historyCache.getHistory(inputMess.getChatId()), question);
 
-        CompletableFuture.runAsync(
-                () -> historyCache.addMessage(inputMess.getChatId(), question),
-                executorServiceOfVirtual
-        );
         return GptRequestBody.builder()
                 .modelUri(yandexProperties.getChatbotUri().formatted())
-                .messages(history)
+                .completionOptions(GptRequestBody.CompletionOptions.builder()
+                        .stream(yandexProperties.isChatbotStreamEnabled())
+                        .build())
+                .messages(messages)
+                .chatId(String.valueOf(inputMess.getChatId()))
+                .baseTokenEstimate(historyTokenBudget.baseEstimate(messages))
                 .build();
     }
 
@@ -85,20 +91,53 @@ public class YandexGptService implements AiModelService<GptRequestBody, GptAnswe
         Request request = new Request.Builder()
                 .url(url)
                 .header(HttpHeaders.CONTENT_TYPE, org.springframework.http.MediaType.APPLICATION_JSON_VALUE)
-                .header(HttpHeaders.AUTHORIZATION, "Bearer " + IamTokenSupplier.IAM_TOKEN)
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + iamTokenManager.getToken())
                 .header(YandexProperties.FOLDER_ID_HEADER_NAME, yandexProperties.getFolderId())
                 .post(RequestBody.create(serializedBody, OkHttpClientConfiguration.MT_APPLICATION_JSON))
                 .build();
 
-        try (Response response = doExecuteControlSpeed(request)) {
+        if (!acquirePermit()) {
+            return Optional.of(GptAnswer.builder().errorHttpStatus(HttpStatus.TOO_MANY_REQUESTS).build());
+        }
+
+//        Место в лимитере держится до конца чтения ответа: при потоковой генерации модель занята, пока идет поток.
+//        Лимит корректируется по времени до заголовков ответа - для потоковой генерации это время до начала
+//        генерации, оно не зависит от длины ответа и скорости отправки его частей в Telegram
+        boolean overloaded = false;
+        long startedAt = System.nanoTime();
+        long latencyNanos = -1;
+        StreamingAnswer streamingAnswer = null;
+        GptAnswer answer;
+        try (Response response = httpClient.newCall(request).execute()) {
 
-            if (response == null || response.code() == HttpStatus.TOO_MANY_REQUESTS.value()) {
+            latencyNanos = System.nanoTime() - startedAt;
+            if (response.code() == HttpStatus.TOO_MANY_REQUESTS.value()) {
+                overloaded = true;
                 return Optional.of(GptAnswer.builder().errorHttpStatus(HttpStatus.TOO_MANY_REQUESTS).build());
             }
-            return response.body() != null
-                    ? Optional.of(objectMapper.readValue(response.body().string(), responseType))
-                    : Optional.of(GptAnswer.builder().errorHttpStatus(HttpStatus.BAD_GATEWAY).build());
+            if (response.body() == null) {
+                return Optional.of(GptAnswer.builder().errorHttpStatus(HttpStatus.BAD_GATEWAY).build());
+            }
+            if (requestBody instanceof GptRequestBody gptRequest && gptRequest.getCompletionOptions().isStream()) {
+                streamingAnswer = new StreamingAnswer(gptRequest.getChatId(), yandexProperties.getChatbotStreamEditIntervalMillis());
+                answer = readStream(response.body(), streamingAnswer);
+            } else {
+                answer = objectMapper.readValue(response.body().string(), responseType);
+            }
+
+        } finally {
+            concurrencyLimiter.release(overloaded, latencyNanos >= 0 ? latencyNanos : System.nanoTime() - startedAt);
         }
+
+//        Ожидание отправки сообщения в Telegram происходит уже после освобождения места в лимитере
+        if (streamingAnswer != null && answer.getResult() != null && answer.getStreamedMessageId() == null) {
+            answer = GptAnswer.builder()
+                    .result(answer.getResult())
+                    .streamedMessageId(streamingAnswer.finish())
+                    .build();
+        }
+        calibrateTokenEstimate(requestBody, answer);
+        return Optional.of(answer);
     }
 
     @Override
@@ -116,9 +155,16 @@ public class YandexGptService implements AiModelService<GptRequestBody, GptAnswe
             log.error(LOGIC_MARKER, "answer is null. Response: {}", response);
             return new SendMessage(chatId, defaultBotAnswer.unknownError());
         }
+//        Вопрос и ответ сохраняются в историю вместе, одной операцией, поэтому их порядок в истории не нарушится,
+//        а вопрос без ответа (при ошибке модели) в историю не попадет
+        GptMessageUnit question = new GptMessageUnit(GptMessageUnit.Role.USER.getRole(), sourceMess.getText());
         GptMessageUnit answer = response.getResult().getAlternatives().getLast().getMessage();
-        CompletableFuture.runAsync(() -> historyCache.addMessage(chatId, answer), executorServiceOfVirtual);
-        return new SendMessage(chatId, answer.getText());
+        CompletableFuture.runAsync(() -> historyCache.addMessages(chatId, List.of(question, answer)), executorServiceOfVirtual);
+
+//        Ответ уже отправлен юзеру по частям во время потоковой генерации
+        return response.getStreamedMessageId() != null
+                ? null
+                : new SendMessage(chatId, answer.getText());
     }
 
     @Override
@@ -131,30 +177,134 @@ public class YandexGptService implements AiModelService<GptRequestBody, GptAnswe
         return GptAnswer.class;
     }
 
-    @Nullable
-    private Response doExecuteControlSpeed(Request request) throws IOException {
+    /**
+     * Читает потоковый ответ модели. Модель присылает последовательность json-объектов {@link GptAnswer}, каждый из
+     * которых содержит весь сгенерированный к этому моменту текст. Объекты разбираются по одному, по мере
+     * поступления, поэтому в памяти одновременно находится только последний из них. Части текста передаются в
+     * {@code streamingAnswer}, который отправляет их юзеру, не задерживая чтение ответа
+     *
+     * @return последний полученный объект ответа. Окончательный текст отправляет {@link StreamingAnswer#finish()}
+     */
+    private GptAnswer readStream(ResponseBody body, StreamingAnswer streamingAnswer) throws IOException {
 
-        try {
-
-        /* Если модель полностью загружена (обрабатывает 5 запросов сразу), то после получения ответа на один
-           из запросов необходимо выждать немного, так как на стороне Яндекса запрос освобождается не сразу */
-            boolean needsWait = false;
-            Call call = httpClient.newCall(request);
+        GptAnswer lastChunk = null;
 
-            if (requestSemaphore.availablePermits() == 0) {
-                needsWait = true;
+        try (MappingIterator<GptAnswer> chunks = objectMapper.readerFor(GptAnswer.class).readValues(body.byteStream())) {
+            while (chunks.hasNextValue()) {
+                lastChunk = chunks.nextValue();
+                if (lastChunk.getResult() == null || lastChunk.getResult().getAlternatives().isEmpty()) {
+                    return lastChunk;   // Ошибка модели, частей ответа больше не будет
+                }
+                Alternative alternative = lastChunk.getResult().getAlternatives().getLast();
+                streamingAnswer.update(alternative.getMessage().getText(), alternative.getStatus() != Status.ALTERNATIVE_STATUS_PARTIAL);
             }
-            requestSemaphore.acquire();
-            if (needsWait) {
-                Thread.sleep(REQUIRED_MILLIS_BETWEEN_REQS);
+        }
+
+        return lastChunk != null
+                ? lastChunk
+                : GptAnswer.builder().errorHttpStatus(HttpStatus.BAD_GATEWAY).build();
+    }
+
+    private void calibrateTokenEstimate(Serializable requestBody, GptAnswer answer) {
+        if (!(requestBody instanceof GptRequestBody gptRequest) || answer.getResult() == null || answer.getResult().getUsage() == null) {
+            return;
+        }
+        try {
+            int inputTokens = Integer.parseInt(answer.getResult().getUsage().getInputTextTokens());
+            historyTokenBudget.calibrate(gptRequest.getBaseTokenEstimate(), inputTokens);
+        } catch (NumberFormatException ex) {
+            log.warn("Unexpected input tokens value in the model usage: {}", answer.getResult().getUsage());
+        }
+    }
+
+    private boolean acquirePermit() {
+        try {
+            boolean acquired = concurrencyLimiter.acquire();
+            if (!acquired) {
+                log.warn("YandexGPT request rejected by the concurrency limiter, limit: {}", concurrencyLimiter.getLimit());
             }
-            return call.execute();
+            return acquired;
 
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            return null;
-        } finally {
-            requestSemaphore.release();
+            return false;
+        }
+    }
+
+    /**
+     * Сообщение юзеру, которое дописывается по мере потоковой генерации ответа
+     * <p>
+     * Пока идет генерация, отправка не блокирует чтение ответа модели: первая часть текста отправляется новым
+     * сообщением, а пока оно не отправлено, следующие части только запоминаются. Дальше текст дописывается
+     * редактированием, но не чаще, чем раз в {@code yandex.chatbot-stream-edit-interval-millis}
+     */
+    private class StreamingAnswer {
+
+        private final String chatId;
+        private final long editIntervalNanos;
+
+        private CompletableFuture<Message> message;
+        private String pendingText;
+        private String sentText;
+        private long lastSentAtNanos;
+
+        private StreamingAnswer(String chatId, long editIntervalMillis) {
+            this.chatId = chatId;
+            this.editIntervalNanos = TimeUnit.MILLISECONDS.toNanos(editIntervalMillis);
+        }
+
+        private void update(String text, boolean isFinal) {
+            if (text == null || text.isBlank()) {
+                return;
+            }
+            pendingText = text;
+            if (isFinal || message == null || System.nanoTime() - lastSentAtNanos >= editIntervalNanos) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (pendingText == null || pendingText.equals(sentText)) {
+                return;
+            }
+
+            if (message == null || message.isDone() && message.join() == null) {
+                message = outboundDispatcher.sendAndReturn(new SendMessage(chatId, pendingText));
+            } else if (message.isDone()) {
+                edit(message.join().getMessageId());
+            } else {
+                return;   // Первое сообщение еще не отправлено, текст уйдет следующим редактированием
+            }
+            sentText = pendingText;
+            lastSentAtNanos = System.nanoTime();
+        }
+
+        /**
+         * Дожидается отправки сообщения и дописывает в него окончательный текст
+         *
+         * @return идентификатор отправленного сообщения или {@code null}, если отправить его не удалось
+         */
+        private Integer finish() {
+            if (pendingText == null) {
+                return null;
+            }
+
+            Message sent = message == null ? null : message.join();
+            if (sent == null) {
+                sent = outboundDispatcher.sendAndReturn(new SendMessage(chatId, pendingText)).join();
+                return sent == null ? null : sent.getMessageId();
+            }
+            if (!pendingText.equals(sentText)) {
+                edit(sent.getMessageId());
+            }
+            return sent.getMessageId();
+        }
+
+        private void edit(Integer messageId) {
+            EditMessageText edit = new EditMessageText(pendingText);
+            edit.setChatId(chatId);
+            edit.setMessageId(messageId);
+            outboundDispatcher.send(edit);
         }
     }
 }